@@ -27,7 +27,8 @@ public class NetKernel extends VMKernel {
     }
 
     /**
-     * Test the network. Create a server thread that listens for pings on port
+     * Test the network. Check the post office by sending messages to this
+     * machine, then create a server thread that listens for pings on port
      * 1 and sends replies. Then ping one or two hosts. Note that this test
      * assumes that the network is reliable (i.e. that the network's
      * reliability is 1.0).
@@ -35,6 +36,8 @@ public class NetKernel extends VMKernel {
     public void selfTest() {
 	super.selfTest();
 
+	postOffice.selfTest();
+
 	KThread serverThread = new KThread(new Runnable() {
 		public void run() { pingServer(); }
 	    });
@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.LinkedList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -10,25 +12,33 @@ import nachos.threads.*;
  * corrupted, but they might get lost.
  *
  * <p>
- * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * The receive interrupt handler defers delivery to the system
+ * <tt>WorkQueue</tt>, whose worker takes each message from the network and
+ * places it in the appropriate queue. This cannot be done in the interrupt
+ * handler itself because each queue (implemented with a <tt>SynchList</tt>)
+ * is protected by a lock.
+ *
+ * <p>
+ * Each mailbox holds at most <tt>PostOffice.mailboxSize</tt> messages (64 by
+ * default). When a mailbox is full, the message is dropped on delivery, as
+ * the network itself may, rather than letting a flood of packets for one port
+ * use up memory or stall delivery to the other ports.
  */
 public class PostOffice {
     /**
      * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-     * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * Register the interrupt handlers with the network hardware.
      */
     public PostOffice() {
-	messageReceived = new Semaphore(0);
-	messageSent = new Semaphore(0);
-	sendLock = new Lock();
+	workQueue = WorkQueue.getSystemQueue();
+	delivery = new Runnable() {
+		public void run() { deliver(); }
+	    };
 
+	int mailboxSize = Config.getInteger("PostOffice.mailboxSize", 64);
 	queues = new SynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new SynchList(mailboxSize);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -38,12 +48,6 @@ public class PostOffice {
 	};
 	Machine.networkLink().setInterruptHandlers(receiveHandler,
 						   sendHandler);
-
-	KThread t = new KThread(new Runnable() {
-		public void run() { postalDelivery(); }
-	    });
-
-	t.fork();
     }
 
     /**
@@ -67,53 +71,93 @@ public class PostOffice {
     }
 
     /**
-     * Wait for incoming messages, and then put them in the correct mailbox.
+     * Take an incoming message from the network link, and put it in the
+     * correct mailbox. Run by the work queue, once for each receive interrupt.
      */
-    private void postalDelivery() {
-	while (true) {
-	    messageReceived.P();
+    private void deliver() {
+	Packet p = Machine.networkLink().receive();
+	if (p == null)
+	    return;
 
-	    Packet p = Machine.networkLink().receive();
+	MailMessage mail;
 
-	    MailMessage mail;
-
-	    try {
-		mail = new MailMessage(p);
-	    }
-	    catch (MalformedPacketException e) {
-		continue;
-	    }
-
-	    if (Lib.test(dbgNet))
-		System.out.println("delivering mail to port " + mail.dstPort
-				   + ": " + mail);
+	try {
+	    mail = new MailMessage(p);
+	}
+	catch (MalformedPacketException e) {
+	    return;
+	}
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	if (Lib.test(dbgNet))
+	    System.out.println("delivering mail to port " + mail.dstPort
+			       + ": " + mail);
+
+	// atomically add message to the mailbox and wake a waiting thread
+	if (!queues[mail.dstPort].tryAdd(mail)) {
+	    dropped++;
+	    Lib.debug(dbgNet, "mailbox " + mail.dstPort
+		      + " is full, dropping mail");
 	}
     }
 
+    /**
+     * Return the number of messages dropped because their mailbox was full.
+     *
+     * @return	the number of dropped messages.
+     */
+    public int getDropped() {
+	return dropped;
+    }
+
     /**
      * Called when a packet has arrived and can be dequeued from the network
      * link.
      */
     private void receiveInterrupt() {
-	messageReceived.V();
+	workQueue.queue(delivery);
     }
 
     /**
-     * Send a message to a mailbox on a remote machine.
+     * Send a message to a mailbox on a remote machine, and wait until the
+     * network link has sent it.
      */
     public void send(MailMessage mail) {
+	sendAsync(mail).get();
+    }
+
+    /**
+     * Start sending a message to a mailbox on a remote machine, without
+     * waiting. The network link sends one packet at a time, so messages are
+     * sent in the order they are passed to this method.
+     *
+     * @param	mail	the message to send.
+     * @return	a future that completes with the message once the network
+     *		link has sent it, which it does even if the packet is then lost.
+     */
+    public KFuture<MailMessage> sendAsync(MailMessage mail) {
 	if (Lib.test(dbgNet))
 	    System.out.println("sending mail: " + mail);
 
-	sendLock.acquire();
+	KFuture<MailMessage> sent = new KFuture<MailMessage>();
+
+	boolean intStatus = Machine.interrupt().disable();
 
-	Machine.networkLink().send(mail.packet);
-	messageSent.P();
+	outgoing.add(new Outgoing(mail, sent));
+	if (sending == null)
+	    sendNext();
+
+	Machine.interrupt().restore(intStatus);
+	return sent;
+    }
 
-	sendLock.release();
+    /**
+     * Hand the next outgoing message to the network link, if there is one.
+     * Must be called with interrupts disabled.
+     */
+    private void sendNext() {
+	sending = outgoing.isEmpty() ? null : outgoing.removeFirst();
+	if (sending != null)
+	    Machine.networkLink().send(sending.mail.packet);
     }
 
     /**
@@ -122,13 +166,58 @@ public class PostOffice {
      * dropped.
      */
     private void sendInterrupt() {
-	messageSent.V();
+	Outgoing sent = sending;
+	sendNext();
+	sent.future.complete(sent.mail);
+    }
+
+    private static class Outgoing {
+	Outgoing(MailMessage mail, KFuture<MailMessage> future) {
+	    this.mail = mail;
+	    this.future = future;
+	}
+
+	MailMessage mail;
+	KFuture<MailMessage> future;
     }
 
     private SynchList[] queues;
-    private Semaphore messageReceived;	// V'd when a message can be dequeued
-    private Semaphore messageSent;	// V'd when a message can be queued
-    private Lock sendLock;
+    private WorkQueue workQueue;
+    private Runnable delivery;	// queued when a message can be dequeued
+    /** Messages waiting for the network link, in the order they were sent. */
+    private LinkedList<Outgoing> outgoing = new LinkedList<Outgoing>();
+    /** The message the network link is sending, or <tt>null</tt>. */
+    private Outgoing sending = null;
+    private int dropped = 0;
 
     private static final char dbgNet = 'n';
+
+    /**
+     * Test if this post office is working, by sending five messages to a port
+     * on this machine and receiving them in order. Assumes that the network's
+     * reliability is 1.0.
+     */
+    public void selfTest() {
+	int local = Machine.networkLink().getLinkAddress();
+	int port = MailMessage.portLimit - 1;
+	int dropped = this.dropped;
+
+	KFuture<?>[] sent = new KFuture<?>[5];
+	try {
+	    for (int i=0; i<sent.length; i++) {
+		sent[i] = sendAsync(new MailMessage(local, port, local, 0,
+						    new byte[] { (byte) i }));
+	    }
+	}
+	catch (MalformedPacketException e) {
+	    Lib.assertNotReached();
+	}
+	KFuture.waitAll(sent);
+
+	for (int i=0; i<sent.length; i++) {
+	    MailMessage mail = receive(port);
+	    Lib.assertTrue(mail.packet.srcLink == local && mail.contents[0] == i);
+	}
+	Lib.assertTrue(this.dropped == dropped);
+    }
 }
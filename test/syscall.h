@@ -25,6 +25,8 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -257,6 +259,32 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* SYNCHRONIZATION SYSCALLS: futexWait, futexWake */
+
+/**
+ * If the word at addr still holds expected, sleep until another thread calls
+ * futexWake() on the same word. The comparison and the sleep are atomic, so a
+ * wakeup that follows a change to the word cannot be lost.
+ *
+ * A lock or semaphore built on these calls keeps its state in the word, and
+ * calls futexWait() only when it has to wait and futexWake() only when there
+ * may be a waiter to wake. Nachos has no atomic instruction for user programs,
+ * so the word itself must still be updated under some other mutual exclusion;
+ * these calls only provide the sleeping and waking.
+ *
+ * Returns 0 after being woken, or -1 if the word did not hold expected or addr
+ * is not a valid word-aligned address.
+ */
+int futexWait(int *addr, int expected);
+
+/**
+ * Wake up to count threads sleeping in futexWait() on the word at addr.
+ *
+ * Returns the number of threads woken, or -1 if addr is not a valid
+ * word-aligned address or count is negative.
+ */
+int futexWake(int *addr, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
@@ -0,0 +1,45 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * The part common to every mutual exclusion lock: a lock is held by at most
+ * one thread, and only that thread may release it. <tt>Condition</tt>,
+ * <tt>Condition2</tt> and <tt>DeadlockDetector</tt> work with any subclass.
+ *
+ * @see	nachos.threads.Lock
+ * @see	nachos.threads.AdaptiveLock
+ */
+public abstract class AbstractLock {
+    /**
+     * Atomically acquire this lock. The current thread must not already hold
+     * this lock.
+     */
+    public abstract void acquire();
+
+    /**
+     * Atomically release this lock, allowing other threads to acquire it.
+     */
+    public abstract void release();
+
+    /**
+     * Test if the current thread holds this lock.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	return (getHolder() == KThread.currentThread());
+    }
+
+    /**
+     * Return the thread that holds this lock.
+     *
+     * @return	the holder, or <tt>null</tt> if this lock is free.
+     */
+    abstract KThread getHolder();
+
+    /** This lock's profiler, if <tt>LockProfiler.enabled</tt> is set. */
+    LockProfiler profiler =
+	LockProfiler.enabled ? new LockProfiler(getClass().getSimpleName())
+			     : null;
+}
@@ -0,0 +1,349 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicStampedReference;
+
+/**
+ * A lock that tries to avoid sleeping when it is contended.
+ *
+ * <p>
+ * The holder of the lock is kept in an atomic reference, so a thread that
+ * finds the lock free takes it with a single compare-and-set, and a holder
+ * with no waiters releases it with another, without disabling interrupts.
+ * The stamp of the reference is set while threads are asleep on the lock, so
+ * that the holder knows to hand the lock to one of them on release.
+ *
+ * <p>
+ * A thread that finds the lock busy first spins: it retries a limited number
+ * of times, yielding the processor between retries for an exponentially
+ * growing number of turns, so that the holder gets to run and a short
+ * critical section can finish. The spin limit adapts to the lock: it doubles
+ * after a spin that acquires the lock and halves after one that does not. If
+ * spinning fails, or if interrupts are disabled, the thread sleeps on a wait
+ * queue created with <tt>transferPriority</tt> set, which is lazily given to
+ * the current holder, so blocked waiters donate priority exactly as they do
+ * with a <tt>Lock</tt>. A released lock is handed directly to the next
+ * sleeping thread, so spinning threads cannot barge ahead of sleeping ones.
+ *
+ * <p>
+ * Each lock counts the retries that failed, the times a thread went to sleep,
+ * and the ticks the lock was held, which can be read with
+ * <tt>getSpins()</tt>, <tt>getBlocks()</tt> and
+ * <tt>getAverageHoldTime()</tt>.
+ */
+public class AdaptiveLock extends AbstractLock {
+    /**
+     * Allocate a new adaptive lock. The lock will initially be <i>free</i>.
+     */
+    public AdaptiveLock() {
+    }
+
+    /**
+     * Acquire this lock, spinning and then sleeping if it is busy. The current
+     * thread must not already hold this lock.
+     */
+    public void acquire() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	KThread thread = KThread.currentThread();
+
+	if (!holder.compareAndSet(null, thread, 0, 0) &&
+	    !(Machine.interrupt().enabled() && spin(thread)))
+	    block(thread);
+
+	acquireTime = Machine.timer().getTime();
+	acquisitions++;
+
+	if (LockProfiler.enabled)
+	    profiler.acquired();
+    }
+
+    /**
+     * Release this lock, handing it to the next sleeping thread if there is
+     * one.
+     */
+    public void release() {
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	KThread thread = KThread.currentThread();
+	holdTicks += Machine.timer().getTime() - acquireTime;
+
+	if (LockProfiler.enabled)
+	    profiler.released();
+
+	if (holder.compareAndSet(thread, null, 0, 0))
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread next = null;
+	if (queueOwner == thread) {
+	    next = waitQueue.nextThread();
+	    queueOwner = next;
+	}
+
+	if (next != null) {
+	    waiters--;
+	    holder.set(next, (waiters > 0) ? 1 : 0);
+	    next.ready();
+	}
+	else {
+	    holder.set(null, 0);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    KThread getHolder() {
+	return holder.getReference();
+    }
+
+    /**
+     * Return the number of retries that found this lock busy.
+     *
+     * @return	the number of failed spins.
+     */
+    public long getSpins() {
+	return spins.get();
+    }
+
+    /**
+     * Return the number of times a thread went to sleep on this lock.
+     *
+     * @return	the number of blocks.
+     */
+    public long getBlocks() {
+	return blocks;
+    }
+
+    /**
+     * Return the number of times this lock was acquired.
+     *
+     * @return	the number of acquisitions.
+     */
+    public long getAcquisitions() {
+	return acquisitions;
+    }
+
+    /**
+     * Return the average number of ticks this lock was held, over the
+     * acquisitions that have been released.
+     *
+     * @return	the average hold time, in ticks.
+     */
+    public double getAverageHoldTime() {
+	long released = acquisitions - (holder.getReference() == null ? 0 : 1);
+	return (released == 0) ? 0 : (double) holdTicks / released;
+    }
+
+    /**
+     * Retry the lock up to the spin limit, backing off between retries.
+     *
+     * @return	<tt>true</tt> if the lock was acquired.
+     */
+    private boolean spin(KThread thread) {
+	int limit = spinLimit;
+	int backoff = 1;
+
+	for (int i=0; i<limit; i++) {
+	    spins.incrementAndGet();
+
+	    for (int j=0; j<backoff; j++)
+		KThread.yield();
+	    backoff = Math.min(backoff*2, maxBackoff);
+
+	    if (holder.compareAndSet(null, thread, 0, 0)) {
+		spinLimit = Math.min(limit*2, maxSpinLimit);
+		return true;
+	    }
+	}
+
+	spinLimit = Math.max(limit/2, 1);
+	return false;
+    }
+
+    /**
+     * Sleep until the lock is handed to the current thread, unless it
+     * becomes free first.
+     */
+    private void block(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int[] stamp = new int[1];
+	while (true) {
+	    KThread owner = holder.get(stamp);
+	    if (owner == null) {
+		if (holder.compareAndSet(null, thread, stamp[0], stamp[0]))
+		    break;
+	    }
+	    else if (holder.compareAndSet(owner, owner, stamp[0], 1)) {
+		// give the wait queue to the holder, so waiters donate to it
+		if (queueOwner != owner) {
+		    Lib.assertTrue(waiters == 0);
+		    if (queueOwner != null)
+			waitQueue.nextThread();
+		    waitQueue.acquire(owner);
+		    queueOwner = owner;
+		}
+
+		waiters++;
+		blocks++;
+		long start = LockProfiler.enabled ? profiler.blocked(owner) : 0;
+		if (DeadlockDetector.enabled)
+		    DeadlockDetector.waitFor(this);
+		waitQueue.waitForAccess(thread);
+		KThread.sleep();
+		if (DeadlockDetector.enabled)
+		    DeadlockDetector.woke();
+		if (LockProfiler.enabled)
+		    profiler.woke(start);
+		break;
+	    }
+	}
+
+	Lib.assertTrue(holder.getReference() == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The holder of this lock, stamped 1 if any thread is asleep on it.
+     */
+    private AtomicStampedReference<KThread> holder =
+	new AtomicStampedReference<KThread>(null, 0);
+
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    /** The thread the wait queue was last given to; interrupts protect it. */
+    private KThread queueOwner = null;
+    /** The number of threads asleep on the wait queue. */
+    private int waiters = 0;
+
+    private int spinLimit = initialSpinLimit;
+
+    private AtomicLong spins = new AtomicLong();
+    private long blocks = 0;
+    private long acquisitions = 0;
+    private long holdTicks = 0;
+    private long acquireTime;
+
+    private static final int initialSpinLimit = 4;
+    private static final int maxSpinLimit = 16;
+    private static final int maxBackoff = 8;
+
+    /**
+     * Increments a shared counter while holding a lock, yielding inside the
+     * critical section to invite interference.
+     */
+    private static class CounterTest implements Runnable {
+	CounterTest(AbstractLock lock, int[] counter, int iterations, int hold) {
+	    this.lock = lock;
+	    this.counter = counter;
+	    this.iterations = iterations;
+	    this.hold = hold;
+	}
+
+	public void run() {
+	    for (int i=0; i<iterations; i++) {
+		lock.acquire();
+		int value = counter[0];
+		for (int j=0; j<hold; j++)
+		    KThread.yield();
+		counter[0] = value + 1;
+		lock.release();
+		KThread.yield();
+	    }
+	}
+
+	private AbstractLock lock;
+	private int[] counter;
+	private int iterations, hold;
+    }
+
+    private static void counterTest(String title, int hold) {
+	AdaptiveLock lock = new AdaptiveLock();
+	int[] counter = new int[1];
+
+	KThread[] threads = new KThread[5];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new CounterTest(lock, counter, 20, hold));
+	    threads[i].setName("counter " + i).fork();
+	}
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(counter[0] == threads.length * 20);
+	System.out.println(title + ": " + lock.getAcquisitions()
+			   + " acquisitions, " + lock.getSpins() + " spins, "
+			   + lock.getBlocks() + " blocks, average hold "
+			   + Math.round(lock.getAverageHoldTime()) + " ticks");
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	System.out.println("AdaptiveLock Test 1 (mutual exclusion):");
+	counterTest("short critical sections", 1);
+	counterTest("long critical sections", 20);
+	System.out.println("AdaptiveLock Test 1 Passed.\n");
+
+	if (ThreadedKernel.scheduler.getClass() != PriorityScheduler.class) {
+	    System.out.println("AdaptiveLock Test 2 skipped: "
+			       + "ThreadedKernel.scheduler is not a "
+			       + "PriorityScheduler.");
+	    return;
+	}
+
+	System.out.println("AdaptiveLock Test 2 (priority donation):");
+
+	final AdaptiveLock lock = new AdaptiveLock();
+	final Semaphore held = new Semaphore(0);
+	final Semaphore go = new Semaphore(0);
+
+	KThread low = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    held.V();
+		    go.P();
+		    lock.release();
+		}
+	    }).setName("low");
+	KThread high = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    lock.release();
+		}
+	    }).setName("high");
+
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(low, 1);
+	ThreadedKernel.scheduler.setPriority(high, 6);
+	Machine.interrupt().restore(intStatus);
+
+	low.fork();
+	held.P();
+	high.fork();
+
+	// give high a chance to spin out and block
+	for (int i=0; i<100 && lock.getBlocks() == 0; i++)
+	    KThread.yield();
+	Lib.assertTrue(lock.getBlocks() == 1);
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(low) == 6);
+	Machine.interrupt().restore(intStatus);
+
+	go.V();
+	low.join();
+	high.join();
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(low) == 1);
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("AdaptiveLock Test 2 Passed.");
+    }
+}
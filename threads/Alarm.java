@@ -7,6 +7,12 @@ import nachos.machine.*;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending wakeups are kept in a <tt>TimingWheel</tt>, so they can be
+ * scheduled and canceled in constant time, and the timer interrupt handler
+ * only does work for the wakeups that are due. Besides waking threads, an
+ * alarm can run any callback at a given time with <tt>schedule()</tt>.
  */
 public class Alarm {
     /**
@@ -27,13 +33,21 @@ public class Alarm {
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
      * that should be run.
+     *
+     * <p>
+     * The timer cannot be programmed to fire only when a wakeup is due, so
+     * the time of the earliest wakeup is cached, and an interrupt that comes
+     * before it does not touch the timing wheel.
      */
     public void timerInterrupt() {
     	boolean intStatus = Machine.interrupt().disable();
-    	while (!threadsToAlarm.isEmpty() &&
-    			threadsToAlarm.peek().wakeTime <= Machine.timer().getTime()) {
-    		threadsToAlarm.remove().thread.ready();
+    	long time = Machine.timer().getTime();
+    	if (time >= nextWakeup) {
+    		wheel.advance(time);
+    		nextWakeup = wheel.nextExpiry();
     	}
+    	if (ThreadedKernel.scheduler.shouldPreempt())
+    		KThread.yield();
     	Machine.interrupt().restore(intStatus);
     }
 
@@ -53,28 +67,120 @@ public class Alarm {
      */
     public void waitUntil(long x) {
     	boolean intStatus = Machine.interrupt().disable();
-    	threadsToAlarm.add(new WaitingThread(Machine.timer().getTime() + x, KThread.currentThread()));
+    	final KThread thread = KThread.currentThread();
+    	add(Machine.timer().getTime() + x, new Runnable() {
+    		public void run() { thread.ready(); }
+    	    });
 		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
     }
+
+    /**
+     * Run a callback from the timer interrupt handler, during the first timer
+     * interrupt at least <i>x</i> ticks from now. The callback runs with
+     * interrupts disabled, so it must not sleep.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	callback	the callback to run.
+     * @return	a timeout whose <tt>cancel()</tt> method, called with
+     *		interrupts disabled, keeps the callback from running.
+     */
+    public TimingWheel.Timeout schedule(long x, Runnable callback) {
+    	boolean intStatus = Machine.interrupt().disable();
+    	TimingWheel.Timeout timeout =
+    		add(Machine.timer().getTime() + x, callback);
+    	Machine.interrupt().restore(intStatus);
+    	return timeout;
+    }
     
-    private static class WaitingThread implements Comparable<WaitingThread> {
-    	long wakeTime;
-    	KThread thread;
-    	
-    	WaitingThread(long wakeTime, KThread thread) {
-    		this.wakeTime = wakeTime;
+    /**
+     * Put the current thread to sleep on a thread queue for at most <i>x</i>
+     * ticks. The caller must have disabled interrupts and called
+     * <tt>queue.waitForAccess()</tt> for the current thread. If the thread is
+     * still on the queue when the timeout expires, the timer interrupt handler
+     * removes it from the queue and wakes it up.
+     *
+     * <p>
+     * A thread that takes the current thread off the queue with
+     * <tt>nextThread()</tt> must call <tt>cancel()</tt> before readying it,
+     * so that the timeout does not wake it a second time.
+     *
+     * @param	queue	the queue the current thread is waiting on.
+     * @param	x	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was taken off the queue, or
+     *		<tt>false</tt> if the timeout expired first.
+     */
+    public boolean waitOn(ThreadQueue queue, long x) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	KThread thread = KThread.currentThread();
+    	TimedWait wait = new TimedWait(thread, queue);
+    	timedWaits.put(thread,
+    		add(Machine.timer().getTime() + x, wait));
+
+    	KThread.sleep();
+
+    	return !wait.timedOut;
+    }
+
+    /**
+     * Cancel the timeout of a thread that was waiting in <tt>waitOn()</tt>
+     * and has just been taken off its queue. Does nothing if the thread has no
+     * timeout pending. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread being woken.
+     * @return	<tt>true</tt> if a timeout was canceled.
+     */
+    public boolean cancel(KThread thread) {
+    	Lib.assertTrue(Machine.interrupt().disabled());
+
+    	if (timedWaits.isEmpty())
+    		return false;
+
+    	TimingWheel.Timeout timeout = timedWaits.remove(thread);
+    	if (timeout == null)
+    		return false;
+
+    	Lib.assertTrue(timeout.cancel());
+    	return true;
+    }
+
+    /**
+     * Schedule a callback on the timing wheel, and keep track of the earliest
+     * wakeup. A timeout that is canceled is left in <tt>nextWakeup</tt>; the
+     * next interrupt after it finds the wheel has nothing to run.
+     */
+    private TimingWheel.Timeout add(long time, Runnable callback) {
+    	nextWakeup = Math.min(nextWakeup, time);
+    	return wheel.schedule(time, callback);
+    }
+
+    /**
+     * The timeout of a thread waiting in <tt>waitOn()</tt>.
+     */
+    private class TimedWait implements Runnable {
+    	TimedWait(KThread thread, ThreadQueue queue) {
     		this.thread = thread;
+    		this.queue = queue;
     	}
-    	
-    	@Override
-    	public int compareTo(WaitingThread o) {
-    		if (wakeTime != o.wakeTime) {
-    			return ((Long) wakeTime).compareTo(o.wakeTime);
-    		}
-    		return thread.compareTo(o.thread);
+
+    	public void run() {
+    		// still on the queue, or cancel() would have removed us
+    		Lib.assertTrue(queue.remove(thread));
+    		timedWaits.remove(thread);
+    		timedOut = true;
+    		thread.ready();
     	}
+
+    	KThread thread;
+    	ThreadQueue queue;
+    	boolean timedOut = false;
     }
-    
-    private static PriorityQueue<WaitingThread> threadsToAlarm = new PriorityQueue<WaitingThread>();
+
+    private TimingWheel wheel = new TimingWheel(Machine.timer().getTime());
+    /** The time of the earliest pending wakeup, or a time before it. */
+    private long nextWakeup = Long.MAX_VALUE;
+    /** The pending timeouts of threads waiting in <tt>waitOn()</tt>. */
+    private HashMap<KThread, TimingWheel.Timeout> timedWaits =
+    	new HashMap<KThread, TimingWheel.Timeout>();
 }
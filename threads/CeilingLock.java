@@ -0,0 +1,255 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Lock</tt> that uses the priority ceiling protocol instead of priority
+ * donation.
+ *
+ * <p>
+ * Each lock has a fixed <i>ceiling</i>, which must be at least the priority of
+ * every thread that will ever acquire it. A thread that acquires the lock is
+ * raised to the ceiling until it releases it, so no other thread that uses the
+ * lock can preempt it in the critical section, and a waiting thread is blocked
+ * for at most one critical section. Waiters sleep on a queue created without
+ * <tt>transferPriority</tt>, so acquiring and releasing never walk a chain of
+ * donations through the threads that hold other locks.
+ *
+ * <p>
+ * The ceiling is a priority in the terms of the current scheduler, and is
+ * applied with <tt>Scheduler.setPriority()</tt>. Under
+ * <tt>FairShareScheduler</tt> it is a nice value, so it must be at most the
+ * nice value of every thread that acquires the lock. On release the holder gets
+ * back the priority it had when it acquired the lock, so nested ceiling locks
+ * must be released in the reverse of the order they were acquired, and a
+ * change to the holder's priority while it holds the lock is undone on
+ * release.
+ */
+public class CeilingLock extends Lock {
+    /**
+     * Allocate a new ceiling lock. The lock will initially be <i>free</i>.
+     *
+     * @param	ceiling	the priority holders of this lock run at.
+     */
+    public CeilingLock(int ceiling) {
+	super(false);
+	this.ceiling = ceiling;
+    }
+
+    /**
+     * Acquire this lock, sleeping if it is busy, and raise the current thread
+     * to the ceiling. The current thread must not already hold this lock, and
+     * its priority must not be above the ceiling.
+     */
+    public void acquire() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	super.acquire();
+
+	savedPriority = ThreadedKernel.scheduler.getPriority();
+	// nice values rank the other way round
+	if (ThreadedKernel.scheduler instanceof FairShareScheduler)
+	    Lib.assertTrue(savedPriority >= ceiling);
+	else
+	    Lib.assertTrue(savedPriority <= ceiling);
+	ThreadedKernel.scheduler.setPriority(ceiling);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Restore the priority the current thread had before it acquired this
+     * lock, and hand the lock to the next waiting thread, if there is one.
+     */
+    public void release() {
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadedKernel.scheduler.setPriority(savedPriority);
+	super.release();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the ceiling of this lock.
+     *
+     * @return	the priority holders of this lock run at.
+     */
+    public int getCeiling() {
+	return ceiling;
+    }
+
+    private int ceiling;
+    /** The priority of the holder before it acquired this lock. */
+    private int savedPriority;
+
+    private static final int benchmarkDepth = 6;
+    private static final int benchmarkRounds = 20;
+
+    /**
+     * Benchmark thread <i>i</i> repeatedly acquires lock <i>i</i>, sleeps
+     * briefly, and then acquires lock <i>i</i>+1, so that while the threads
+     * overlap, each one holds a lock and waits for the next thread's, as in
+     * the join chain of <tt>PriorityScheduler.selfTest()</tt>. Thread 0 has the
+     * highest priority and the last thread the lowest, so with donation, the
+     * priority of thread 0 is passed down the whole chain.
+     */
+    private static class Chain implements Runnable {
+	Chain(Lock[] locks, int index, long[] maxWait) {
+	    this.locks = locks;
+	    this.index = index;
+	    this.maxWait = maxWait;
+	}
+
+	public void run() {
+	    for (int r=0; r<benchmarkRounds; r++) {
+		acquire(locks[index]);
+		ThreadedKernel.alarm.waitUntil(100);
+		if (index+1 < locks.length) {
+		    acquire(locks[index+1]);
+		    KThread.yield();
+		    locks[index+1].release();
+		}
+		locks[index].release();
+		KThread.yield();
+	    }
+	}
+
+	private void acquire(Lock lock) {
+	    long start = Machine.timer().getTime();
+	    lock.acquire();
+	    maxWait[0] = Math.max(maxWait[0],
+				  Machine.timer().getTime() - start);
+	}
+
+	private Lock[] locks;
+	private int index;
+	private long[] maxWait;
+    }
+
+    /**
+     * Run the chain benchmark with the specified locks. Print the elapsed
+     * ticks, and the longest time the highest priority thread waited for a
+     * single lock.
+     *
+     * @return	the longest time the highest priority thread waited.
+     */
+    private static long benchmark(String name, Lock[] locks) {
+	long[] maxWait = new long[1];
+	KThread[] threads = new KThread[locks.length];
+
+	long start = Machine.timer().getTime();
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Chain(locks, i,
+					       i == 0 ? maxWait : new long[1]))
+		.setName("chain " + i);
+	    boolean intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(threads[i], threads.length - i);
+	    Machine.interrupt().restore(intStatus);
+	    threads[i].fork();
+	}
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	System.out.println(name + ": " + (Machine.timer().getTime() - start)
+			   + " ticks, highest priority thread waited "
+			   + maxWait[0] + " ticks at most");
+
+	return maxWait[0];
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	System.out.println("CeilingLock Test 1 (mutual exclusion):");
+	boolean intStatus = Machine.interrupt().disable();
+	final CeilingLock lock =
+	    new CeilingLock(ThreadedKernel.scheduler.getPriority());
+	Machine.interrupt().restore(intStatus);
+	final int[] inside = new int[1];
+	KThread[] threads = new KThread[4];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int r=0; r<5; r++) {
+			    lock.acquire();
+			    Lib.assertTrue(++inside[0] == 1);
+			    KThread.yield();
+			    inside[0]--;
+			    lock.release();
+			}
+		    }
+		}).setName("contender " + i);
+	    threads[i].fork();
+	}
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+	System.out.println("CeilingLock Test 1 Passed.\n");
+
+	// the remaining tests need strict priorities
+	if (ThreadedKernel.scheduler.getClass() != PriorityScheduler.class)
+	    return;
+
+	System.out.println("CeilingLock Test 2 (holder runs at the ceiling):");
+	CeilingLock outer = new CeilingLock(5), inner = new CeilingLock(7);
+	intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(2);
+	outer.acquire();
+	Lib.assertTrue(ThreadedKernel.scheduler.getPriority() == 5);
+	inner.acquire();
+	Lib.assertTrue(ThreadedKernel.scheduler.getPriority() == 7);
+	inner.release();
+	Lib.assertTrue(ThreadedKernel.scheduler.getPriority() == 5);
+	outer.release();
+	Lib.assertTrue(ThreadedKernel.scheduler.getPriority() == 2);
+	ThreadedKernel.scheduler.setPriority(PriorityScheduler.priorityDefault);
+	Machine.interrupt().restore(intStatus);
+
+	// a middle priority thread that wakes at the same time as a low
+	// priority holder does not run ahead of it
+	final CeilingLock shared = new CeilingLock(6);
+	final StringBuffer order = new StringBuffer();
+	final long wake = Machine.timer().getTime() + 2000;
+	KThread low = new KThread(new Runnable() {
+		public void run() {
+		    shared.acquire();
+		    ThreadedKernel.alarm.waitUntil(wake - Machine.timer().getTime());
+		    order.append("low ");
+		    shared.release();
+		}
+	    }).setName("low");
+	KThread middle = new KThread(new Runnable() {
+		public void run() {
+		    ThreadedKernel.alarm.waitUntil(wake - Machine.timer().getTime());
+		    order.append("middle ");
+		}
+	    }).setName("middle");
+	intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(low, 2);
+	ThreadedKernel.scheduler.setPriority(middle, 4);
+	Machine.interrupt().restore(intStatus);
+	low.fork();
+	middle.fork();
+	low.join();
+	middle.join();
+	Lib.assertTrue(order.toString().equals("low middle "));
+	System.out.println("CeilingLock Test 2 Passed.\n");
+
+	System.out.println("CeilingLock Test 3 (lock chain against Lock):");
+	Lock[] donating = new Lock[benchmarkDepth];
+	Lock[] ceiling = new Lock[benchmarkDepth];
+	for (int i=0; i<benchmarkDepth; i++) {
+	    donating[i] = new Lock();
+	    ceiling[i] = new CeilingLock(benchmarkDepth);
+	}
+	long donatingWait = benchmark("Lock with donation", donating);
+	long ceilingWait = benchmark("CeilingLock", ceiling);
+	// with ceilings, thread 0 waits for at most one critical section
+	Lib.assertTrue(ceilingWait < donatingWait);
+	System.out.println("CeilingLock Test 3 Passed.\n");
+    }
+}
@@ -0,0 +1,386 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries 32-bit words from speaking threads to listening
+ * threads, like a <tt>Communicator</tt>, but can move many words per handoff.
+ *
+ * <p>
+ * A channel with a capacity of 0 keeps the rendezvous semantics of a
+ * communicator: a speaker does not return until listeners have taken all of
+ * its words, which they copy straight out of the speaker's array. A channel
+ * with a positive capacity is a bounded buffer: a speaker only waits while the
+ * buffer is full.
+ *
+ * <p>
+ * A speaker hands over all of its words in one turn, so the words of one call
+ * to <tt>speakAll()</tt> reach the listeners in order, without the words of
+ * other speakers in between. A listener takes as many words as are available,
+ * up to the size of its buffer, waiting only if there are none. Since a
+ * handoff costs one lock acquire and one or two wakes no matter how many words
+ * it moves, batches cost far fewer context switches per word than a
+ * communicator does.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can buffer, or
+     *				0 for a rendezvous channel.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	buffer = new int[capacity];
+
+	lock = new Lock();
+	speakerTurn = new Condition2(lock);
+	taken = new Condition2(lock);
+	available = new Condition2(lock);
+    }
+
+    /**
+     * Transfer one word to a listener. On a rendezvous channel, does not
+     * return until a listener has taken it.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+	speakAll(new int[] { word }, 0, 1);
+    }
+
+    /**
+     * Transfer every word of an array to the listeners, in order.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speakAll(int[] words) {
+	speakAll(words, 0, words.length);
+    }
+
+    /**
+     * Transfer part of an array to the listeners, in order. On a rendezvous
+     * channel, does not return until listeners have taken every word; on a
+     * buffered channel, does not return until every word is in the buffer.
+     *
+     * @param	words	the array holding the integers to transfer.
+     * @param	offset	the index of the first integer to transfer.
+     * @param	length	the number of integers to transfer.
+     */
+    public void speakAll(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= words.length);
+
+	lock.acquire();
+
+	while (speaking)
+	    speakerTurn.sleep();
+	speaking = true;
+
+	if (buffer.length == 0) {
+	    offer = words;
+	    offerPos = offset;
+	    offerEnd = offset + length;
+	    if (length > 0)
+		available.wake();
+
+	    while (offerPos < offerEnd)
+		taken.sleep();
+	    offer = null;
+	}
+	else {
+	    while (length > 0) {
+		while (count == buffer.length)
+		    taken.sleep();
+
+		int amount = Math.min(length, buffer.length - count);
+		int tail = (head + count) % buffer.length;
+		int first = Math.min(amount, buffer.length - tail);
+		System.arraycopy(words, offset, buffer, tail, first);
+		System.arraycopy(words, offset + first, buffer, 0,
+				 amount - first);
+
+		offset += amount;
+		length -= amount;
+		count += amount;
+		available.wake();
+	    }
+	}
+
+	speaking = false;
+	speakerTurn.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Wait for a word, and return it.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+	int[] word = new int[1];
+	listen(word, 0, 1);
+	return word[0];
+    }
+
+    /**
+     * Wait for at least one word, and take as many as are available, up to
+     * the length of the array.
+     *
+     * @param	buf	the array to store the integers in.
+     * @return	the number of integers transferred, at least 1.
+     */
+    public int listen(int[] buf) {
+	return listen(buf, 0, buf.length);
+    }
+
+    /**
+     * Wait for at least one word, and take as many as are available, up to
+     * <i>length</i>.
+     *
+     * @param	buf	the array to store the integers in.
+     * @param	offset	the index in <i>buf</i> of the first integer.
+     * @param	length	the largest number of integers to transfer.
+     * @return	the number of integers transferred, at least 1.
+     */
+    public int listen(int[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length > 0 &&
+		       offset + length <= buf.length);
+
+	lock.acquire();
+
+	while (available() == 0)
+	    available.sleep();
+
+	int amount;
+	if (buffer.length == 0) {
+	    amount = Math.min(length, offerEnd - offerPos);
+	    System.arraycopy(offer, offerPos, buf, offset, amount);
+	    offerPos += amount;
+	}
+	else {
+	    amount = Math.min(length, count);
+	    int first = Math.min(amount, buffer.length - head);
+	    System.arraycopy(buffer, head, buf, offset, first);
+	    System.arraycopy(buffer, 0, buf, offset + first, amount - first);
+
+	    head = (head + amount) % buffer.length;
+	    count -= amount;
+	}
+
+	// pass what is left on to the next listener, rather than waking them all
+	if (available() > 0)
+	    available.wake();
+	if (speaking)
+	    taken.wake();
+
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Return the number of words a listener could take now.
+     */
+    private int available() {
+	if (buffer.length == 0)
+	    return (offer == null) ? 0 : offerEnd - offerPos;
+	else
+	    return count;
+    }
+
+    private Lock lock;
+    /** Speakers waiting for the speaker ahead of them to finish. */
+    private Condition2 speakerTurn;
+    /** The speaker whose turn it is, waiting for listeners to take words. */
+    private Condition2 taken;
+    /** Listeners waiting for words. */
+    private Condition2 available;
+
+    /** <tt>true</tt> while a speaker is handing over its words. */
+    private boolean speaking = false;
+
+    /** The words a rendezvous speaker is offering, or <tt>null</tt>. */
+    private int[] offer = null;
+    private int offerPos, offerEnd;
+
+    /** The ring buffer of a buffered channel; empty for a rendezvous. */
+    private int[] buffer;
+    private int head = 0, count = 0;
+
+    /**
+     * Speaks 0, 1, 2, ... in batches of varying size.
+     */
+    private static class Counter implements Runnable {
+	Counter(Channel channel, int words) {
+	    this.channel = channel;
+	    this.words = words;
+	}
+
+	public void run() {
+	    int next = 0;
+	    for (int size=1; next < words; size = size%37 + 1) {
+		int[] batch = new int[Math.min(size, words - next)];
+		for (int i=0; i<batch.length; i++)
+		    batch[i] = next++;
+		channel.speakAll(batch);
+	    }
+	}
+
+	private Channel channel;
+	private int words;
+    }
+
+    /**
+     * Check that a channel delivers a counter's words in order, to a listener
+     * whose buffer changes size.
+     */
+    private static void orderTest(Channel channel) {
+	int words = 1000;
+	KThread speaker = new KThread(new Counter(channel, words))
+	    .setName("counter");
+	speaker.fork();
+
+	int[] buf = new int[29];
+	int expected = 0;
+	for (int size=1; expected < words; size = size%buf.length + 1) {
+	    int amount = channel.listen(buf, 0, Math.min(size, words - expected));
+	    Lib.assertTrue(amount >= 1 && amount <= size);
+	    for (int i=0; i<amount; i++)
+		Lib.assertTrue(buf[i] == expected++);
+	}
+
+	speaker.join();
+    }
+
+    private static final int benchmarkWords = 4000;
+    private static final int benchmarkThreads = 2;
+
+    /**
+     * Moves <tt>benchmarkWords / benchmarkThreads</tt> words through a
+     * communicator or a channel, one at a time or in batches.
+     */
+    private static class Benchmark implements Runnable {
+	Benchmark(Communicator comm, Channel channel, int batch,
+		  boolean speaker, long[] sum) {
+	    this.comm = comm;
+	    this.channel = channel;
+	    this.batch = batch;
+	    this.speaker = speaker;
+	    this.sum = sum;
+	}
+
+	public void run() {
+	    int words = benchmarkWords / benchmarkThreads;
+	    int[] buf = new int[batch];
+
+	    for (int done=0; done<words; ) {
+		int amount;
+		if (speaker) {
+		    amount = Math.min(batch, words - done);
+		    for (int i=0; i<amount; i++)
+			buf[i] = done + i;
+		    if (comm != null)
+			comm.speak(buf[0]);
+		    else
+			channel.speakAll(buf, 0, amount);
+		}
+		else if (comm != null) {
+		    amount = 1;
+		    buf[0] = comm.listen();
+		}
+		else {
+		    amount = channel.listen(buf, 0,
+					    Math.min(batch, words - done));
+		}
+
+		for (int i=0; i<amount; i++)
+		    sum[0] += speaker ? buf[i] : -buf[i];
+		done += amount;
+	    }
+	}
+
+	private Communicator comm;
+	private Channel channel;
+	private int batch;
+	private boolean speaker;
+	private long[] sum;
+    }
+
+    /**
+     * Run the benchmark with the specified communicator or channel, and return
+     * the elapsed ticks.
+     */
+    private static long benchmark(Communicator comm, Channel channel,
+				  int batch) {
+	long[] sum = new long[1];
+	KThread[] threads = new KThread[2*benchmarkThreads];
+
+	long start = Machine.timer().getTime();
+	for (int i=0; i<threads.length; i++) {
+	    boolean speaker = (i%2 == 0);
+	    threads[i] = new KThread(new Benchmark(comm, channel, batch,
+						   speaker, sum))
+		.setName((speaker ? "speaker " : "listener ") + i/2);
+	    threads[i].fork();
+	}
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	// every word spoken was heard exactly once
+	Lib.assertTrue(sum[0] == 0);
+
+	return Machine.timer().getTime() - start;
+    }
+
+    private static String wordsPerKilotick(long ticks) {
+	return (benchmarkWords * 1000 / ticks) + " words/1000 ticks";
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	System.out.println("Channel Test 1 (order, rendezvous):");
+	orderTest(new Channel(0));
+	System.out.println("Channel Test 1 Passed.\n");
+
+	System.out.println("Channel Test 2 (order, buffered):");
+	orderTest(new Channel(16));
+	orderTest(new Channel(1));
+	System.out.println("Channel Test 2 Passed.\n");
+
+	System.out.println("Channel Test 3 (rendezvous waits for listener):");
+	final Channel rendezvous = new Channel(0);
+	final boolean[] spoken = new boolean[1];
+	KThread speaker = new KThread(new Runnable() {
+		public void run() {
+		    rendezvous.speak(42);
+		    spoken[0] = true;
+		}
+	    }).setName("speaker");
+	speaker.fork();
+	for (int i=0; i<10; i++)
+	    KThread.yield();
+	Lib.assertTrue(!spoken[0]);
+	Lib.assertTrue(rendezvous.listen() == 42);
+	speaker.join();
+	Lib.assertTrue(spoken[0]);
+	System.out.println("Channel Test 3 Passed.\n");
+
+	System.out.println("Channel Test 4 (throughput against Communicator):");
+	long commTicks = benchmark(new Communicator(), null, 1);
+	long singleTicks = benchmark(null, new Channel(0), 1);
+	long batchTicks = benchmark(null, new Channel(64), 32);
+	System.out.println(benchmarkWords + " words: Communicator "
+			   + wordsPerKilotick(commTicks)
+			   + ", Channel(0) one at a time "
+			   + wordsPerKilotick(singleTicks)
+			   + ", Channel(64) in batches of 32 "
+			   + wordsPerKilotick(batchTicks));
+	Lib.assertTrue(batchTicks < commTicks);
+	System.out.println("Channel Test 4 Passed.");
+    }
+}
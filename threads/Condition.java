@@ -59,6 +59,19 @@ public class Condition {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition(Lock conditionLock) {
+	this((AbstractLock) conditionLock);
+    }
+
+    /**
+     * Allocate a new condition variable that uses any kind of lock, such as
+     * an <tt>AdaptiveLock</tt>.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable. The current thread must hold this
+     *				lock whenever it uses <tt>sleep()</tt>,
+     *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
+     */
+    public Condition(AbstractLock conditionLock) {
 	this.conditionLock = conditionLock;
 
 	waitQueue = new LinkedList<Semaphore>();
@@ -109,6 +122,6 @@ public class Condition {
 	    wake();
     }
 
-    private Lock conditionLock;
+    private AbstractLock conditionLock;
     private LinkedList<Semaphore> waitQueue;
 }
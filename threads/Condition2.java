@@ -22,6 +22,19 @@ public class Condition2 {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
+	this((AbstractLock) conditionLock);
+    }
+
+    /**
+     * Allocate a new condition variable that uses any kind of lock, such as
+     * an <tt>AdaptiveLock</tt>.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable. The current thread must hold this
+     *				lock whenever it uses <tt>sleep()</tt>,
+     *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
+     */
+    public Condition2(AbstractLock conditionLock) {
 	this.conditionLock = conditionLock;
     }
 
@@ -35,11 +48,45 @@ public class Condition2 {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
         boolean intStatus = Machine.interrupt().disable();
         KThread thread = KThread.currentThread();
+        long start = LockProfiler.enabled ? profiler.blocked(null) : 0;
         waitQueue.waitForAccess(thread);
         conditionLock.release();
         KThread.sleep();
+        if (LockProfiler.enabled) {
+            profiler.woke(start);
+            profiler.acquired();
+        }
+        Machine.interrupt().restore(intStatus);
+        conditionLock.acquire();
+    }
+
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting after the specified number of
+     * clock ticks. The timeout is only noticed at a timer interrupt, so it may
+     * expire up to about 500 ticks late. The associated lock is reacquired
+     * either way.
+     *
+     * @param	ticks	the maximum number of ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if the timeout expired
+     *		first.
+     */
+    public boolean sleepFor(long ticks) {
+        Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+        Lib.assertTrue(ticks >= 0);
+        boolean intStatus = Machine.interrupt().disable();
+        KThread thread = KThread.currentThread();
+        long start = LockProfiler.enabled ? profiler.blocked(null) : 0;
+        waitQueue.waitForAccess(thread);
+        conditionLock.release();
+        boolean woken = ThreadedKernel.alarm.waitOn(waitQueue, ticks);
+        if (LockProfiler.enabled) {
+            profiler.woke(start);
+            profiler.acquired();
+        }
         Machine.interrupt().restore(intStatus);
         conditionLock.acquire();
+        return woken;
     }
 
     /**
@@ -50,8 +97,10 @@ public class Condition2 {
         Lib.assertTrue(conditionLock.isHeldByCurrentThread());
         boolean intStatus = Machine.interrupt().disable();
         KThread thread = waitQueue.nextThread();
-        if (thread != null)
+        if (thread != null) {
+            ThreadedKernel.alarm.cancel(thread);
             thread.ready();
+        }
         Machine.interrupt().restore(intStatus);
     }
 
@@ -64,6 +113,7 @@ public class Condition2 {
         boolean intStatus = Machine.interrupt().disable();
         KThread thread = waitQueue.nextThread();
         while (thread != null) {
+            ThreadedKernel.alarm.cancel(thread);
             thread.ready();
             thread = waitQueue.nextThread();
         }
@@ -149,8 +199,29 @@ public class Condition2 {
         for (int i = 0; i < num; i ++)
             ths.get(i).join();
         System.out.println("Condition2 Test (Dining Philosopher) Passed.");
+
+        System.out.println("Condition2 Test (timed sleep):");
+        final Lock lock = new Lock();
+        final Condition2 cond = new Condition2(lock);
+        lock.acquire();
+        Lib.assertTrue(!cond.sleepFor(1000));
+        Lib.assertTrue(lock.isHeldByCurrentThread());
+        KThread waker = new KThread(new Runnable() {
+            public void run() {
+                lock.acquire();
+                cond.wake();
+                lock.release();
+            }
+        }).setName("waker");
+        waker.fork();
+        Lib.assertTrue(cond.sleepFor(100000));
+        lock.release();
+        waker.join();
+        System.out.println("Condition2 Test (timed sleep) Passed.");
     }
 
-    private Lock conditionLock;
+    private AbstractLock conditionLock;
+    private LockProfiler profiler =
+        LockProfiler.enabled ? new LockProfiler("Condition2") : null;
     private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,101 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>latch</i> lets threads wait until a count reaches zero. The count is
+ * set when the latch is created, and threads decrement it with
+ * <tt>countDown()</tt>; once it reaches zero, every waiting thread is woken in
+ * a single pass, and later calls to <tt>await()</tt> return immediately.
+ *
+ * <p>
+ * A thread that forks <i>n</i> workers can wait for all of them by sleeping
+ * once in <tt>await()</tt>, instead of joining each worker in turn.
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new latch.
+     *
+     * @param	count	the number of times <tt>countDown()</tt> must be called
+     *			before waiting threads are released.
+     */
+    public CountDownLatch(int count) {
+	Lib.assertTrue(count >= 0);
+
+	this.count = count;
+    }
+
+    /**
+     * Wait until the count reaches zero.
+     */
+    public void await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Decrement the count, and if it reaches zero, wake every waiting thread.
+     * Does nothing if the count is already zero.
+     */
+    public void countDown() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > 0 && --count == 0) {
+	    KThread thread;
+	    while ((thread = waitQueue.nextThread()) != null)
+		thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the current count.
+     *
+     * @return	the number of <tt>countDown()</tt> calls still needed.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    private int count;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final CountDownLatch start = new CountDownLatch(1);
+	final CountDownLatch done = new CountDownLatch(5);
+	final int[] ran = new int[1];
+
+	for (int i=0; i<5; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			start.await();
+			ran[0]++;
+			done.countDown();
+		    }
+		}).setName("worker " + i).fork();
+	}
+
+	KThread.yield();
+	Lib.assertTrue(ran[0] == 0);
+
+	start.countDown();
+	done.await();
+	Lib.assertTrue(ran[0] == 5 && done.getCount() == 0);
+
+	// an open latch does not block
+	done.await();
+	done.countDown();
+	Lib.assertTrue(done.getCount() == 0);
+    }
+}
@@ -0,0 +1,140 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>barrier</i> makes a fixed number of threads, its parties, wait for
+ * each other. Each party calls <tt>await()</tt>; the last one to arrive runs
+ * the barrier action, if there is one, and then wakes the others in a single
+ * pass. The barrier then resets, so the same parties can use it again for the
+ * next round.
+ */
+public class CyclicBarrier {
+    /**
+     * Allocate a new barrier with no barrier action.
+     *
+     * @param	parties	the number of threads that must call
+     *			<tt>await()</tt> before any of them returns.
+     */
+    public CyclicBarrier(int parties) {
+	this(parties, null);
+    }
+
+    /**
+     * Allocate a new barrier.
+     *
+     * @param	parties	the number of threads that must call
+     *			<tt>await()</tt> before any of them returns.
+     * @param	action	run by the last thread to arrive in each round,
+     *			before the others are woken, or <tt>null</tt>.
+     */
+    public CyclicBarrier(int parties, Runnable action) {
+	Lib.assertTrue(parties > 0);
+
+	this.parties = parties;
+	this.action = action;
+    }
+
+    /**
+     * Wait until every party has called <tt>await()</tt> in this round.
+     *
+     * @return	the number of parties that had yet to arrive when this thread
+     *		arrived, less one: <tt>getParties() - 1</tt> for the first
+     *		thread to arrive and 0 for the last.
+     */
+    public int await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int index = parties - ++arrived;
+	if (index > 0) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+	else {
+	    // start the next round, so threads woken below cannot rejoin this one
+	    ThreadQueue released = waitQueue;
+	    waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	    arrived = 0;
+	    rounds++;
+
+	    if (action != null) {
+		Machine.interrupt().restore(intStatus);
+		action.run();
+		Machine.interrupt().disable();
+	    }
+
+	    KThread thread;
+	    while ((thread = released.nextThread()) != null)
+		thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return index;
+    }
+
+    /**
+     * Return the number of parties this barrier waits for.
+     *
+     * @return	the number of parties.
+     */
+    public int getParties() {
+	return parties;
+    }
+
+    /**
+     * Return the number of rounds that have completed.
+     *
+     * @return	the number of times every party has arrived.
+     */
+    public int getRounds() {
+	return rounds;
+    }
+
+    private int parties;
+    private Runnable action;
+    private int arrived = 0;
+    private int rounds = 0;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final int parties = 4, rounds = 3;
+	final int[] step = new int[parties];
+	final int[] actions = new int[1];
+
+	final CyclicBarrier barrier = new CyclicBarrier(parties, new Runnable() {
+		public void run() {
+		    // every party has finished the same round
+		    for (int i=0; i<parties; i++)
+			Lib.assertTrue(step[i] == actions[0] + 1);
+		    actions[0]++;
+		}
+	    });
+
+	KThread[] threads = new KThread[parties];
+	final int[] last = new int[1];
+	for (int i=0; i<parties; i++) {
+	    final int id = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int r=0; r<rounds; r++) {
+			    step[id]++;
+			    if (barrier.await() == 0)
+				last[0]++;
+			    Lib.assertTrue(actions[0] == r + 1);
+			}
+		    }
+		}).setName("party " + i);
+	    threads[i].fork();
+	}
+
+	for (int i=0; i<parties; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(actions[0] == rounds && last[0] == rounds);
+	Lib.assertTrue(barrier.getRounds() == rounds);
+    }
+}
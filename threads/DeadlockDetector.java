@@ -0,0 +1,286 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maintains the wait-for graph of the kernel and reports a deadlock as soon
+ * as a cycle forms in it.
+ *
+ * <p>
+ * Detection is turned on by setting <tt>DeadlockDetector.enabled</tt> to true
+ * in the configuration file. <tt>Lock</tt>, <tt>AdaptiveLock</tt>,
+ * <tt>KThread.join()</tt> and <tt>Semaphore</tt> call <tt>waitFor()</tt>
+ * just before the current thread sleeps and <tt>woke()</tt> just after, each
+ * behind a test of <tt>DeadlockDetector.enabled</tt>.
+ *
+ * <p>
+ * A blocked thread has an edge to the resource it sleeps on, and a resource
+ * has an edge to the thread that owns it: a lock to its holder, and a thread
+ * being joined to itself. A semaphore has no owner, so a wait on a semaphore
+ * ends a path; such waits are still recorded so that <tt>print()</tt> shows
+ * every blocked thread. Since every thread on a cycle is blocked, a cycle can
+ * only be closed by a thread going to sleep, so following the single path out
+ * of the thread that is about to sleep finds every cycle at the moment it
+ * forms.
+ *
+ * <p>
+ * When a cycle is found it is printed, along with every other blocked thread,
+ * and unless <tt>DeadlockDetector.halt</tt> is false, the kernel terminates
+ * instead of idling forever.
+ */
+public class DeadlockDetector {
+    /**
+     * Prevent instantiation.
+     */
+    private DeadlockDetector() {
+    }
+
+    /**
+     * Record that the current thread is about to sleep on the specified
+     * resource, and check whether this closes a cycle. Must be called with
+     * interrupts disabled.
+     *
+     * @param	resource	the <tt>Lock</tt> or <tt>Semaphore</tt> the
+     *				thread will sleep on, or the <tt>KThread</tt>
+     *				it will join.
+     */
+    public static void waitFor(Object resource) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread thread = KThread.currentThread();
+	waits.put(thread, resource);
+
+	List<KThread> cycle = findCycle(thread);
+	if (cycle == null)
+	    return;
+
+	deadlocks++;
+	lastCycle = cycle;
+
+	System.out.println("Deadlock: " + cycle.size() + " threads wait for "
+			   + "each other:");
+	for (Iterator<KThread> i=cycle.iterator(); i.hasNext(); ) {
+	    KThread waiter = i.next();
+	    Object waited = waits.get(waiter);
+	    System.out.println("\t" + waiter + " waits for " + describe(waited)
+			       + ", owned by " + owner(waited));
+	}
+	print();
+
+	if (halt)
+	    Kernel.kernel.terminate();
+    }
+
+    /**
+     * Record that the current thread woke up and no longer waits for anything.
+     * Must be called with interrupts disabled.
+     */
+    public static void woke() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	waits.remove(KThread.currentThread());
+    }
+
+    /**
+     * Return the number of deadlocks found so far.
+     *
+     * @return	the number of cycles that have formed.
+     */
+    public static int getDeadlocks() {
+	return deadlocks;
+    }
+
+    /**
+     * Return the threads of the last cycle found, starting with the thread
+     * whose wait closed it.
+     *
+     * @return	the threads of the last cycle, or <tt>null</tt> if no cycle has
+     *		formed.
+     */
+    public static List<KThread> getLastCycle() {
+	return lastCycle;
+    }
+
+    /**
+     * Print every thread that is blocked on a resource, and what it waits for.
+     * Must be called with interrupts disabled.
+     */
+    public static void print() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	System.out.println("Blocked threads:");
+	for (Iterator<Map.Entry<KThread,Object>> i=waits.entrySet().iterator();
+	     i.hasNext(); ) {
+	    Map.Entry<KThread,Object> entry = i.next();
+	    KThread owner = owner(entry.getValue());
+	    System.out.println("\t" + entry.getKey() + " waits for "
+			       + describe(entry.getValue())
+			       + (owner == null ? "" : ", owned by " + owner));
+	}
+    }
+
+    /**
+     * Follow the wait-for edges out of the specified thread.
+     *
+     * @return	the threads on the path, if it leads back to the specified
+     *		thread, or <tt>null</tt> if it ends at a thread that is not
+     *		blocked or at a resource without an owner.
+     */
+    private static List<KThread> findCycle(KThread thread) {
+	ArrayList<KThread> path = new ArrayList<KThread>();
+	path.add(thread);
+
+	// no path without a cycle is longer than the number of blocked threads
+	KThread next = owner(waits.get(thread));
+	while (next != null && path.size() <= waits.size()) {
+	    if (next == thread)
+		return path;
+
+	    Object resource = waits.get(next);
+	    if (resource == null)
+		return null;
+
+	    path.add(next);
+	    next = owner(resource);
+	}
+
+	return null;
+    }
+
+    private static KThread owner(Object resource) {
+	if (resource instanceof AbstractLock)
+	    return ((AbstractLock) resource).getHolder();
+	else if (resource instanceof KThread)
+	    return (KThread) resource;
+	else
+	    return null;
+    }
+
+    private static String describe(Object resource) {
+	if (resource instanceof KThread)
+	    return "join of " + resource;
+	else if (resource instanceof AbstractLock &&
+		 ((AbstractLock) resource).profiler != null)
+	    return ((AbstractLock) resource).profiler.toString();
+	else
+	    return resource.getClass().getSimpleName() + "@"
+		+ Integer.toHexString(System.identityHashCode(resource));
+    }
+
+    /**
+     * <tt>true</tt> if waits should be recorded. Read once from the
+     * configuration, so that testing it is as cheap as testing a constant.
+     */
+    public static final boolean enabled =
+	Config.getBoolean("DeadlockDetector.enabled", false);
+
+    private static boolean halt =
+	Config.getBoolean("DeadlockDetector.halt", true);
+
+    /** The resource each blocked thread is sleeping on. */
+    private static HashMap<KThread,Object> waits =
+	new HashMap<KThread,Object>();
+    private static int deadlocks = 0;
+    private static List<KThread> lastCycle = null;
+
+    /**
+     * Acquires one lock, then another, holding the first.
+     */
+    private static class LockOrderTest implements Runnable {
+	LockOrderTest(Lock first, Lock second, Semaphore held,
+		      Semaphore go) {
+	    this.first = first;
+	    this.second = second;
+	    this.held = held;
+	    this.go = go;
+	}
+
+	public void run() {
+	    first.acquire();
+	    held.V();
+	    go.P();
+	    second.acquire();
+	}
+
+	private Lock first, second;
+	private Semaphore held, go;
+    }
+
+    /**
+     * Test if this module is working. The deadlocked threads it creates are
+     * left asleep.
+     */
+    public static void selfTest() {
+	if (!enabled) {
+	    System.out.println("DeadlockDetector Test skipped: "
+			       + "DeadlockDetector.enabled is not set.");
+	    return;
+	}
+
+	boolean oldHalt = halt;
+	halt = false;
+
+	System.out.println("DeadlockDetector Test 1 (lock order inversion):");
+
+	Lock a = new Lock(), b = new Lock();
+	Semaphore held = new Semaphore(0);
+	Semaphore go = new Semaphore(0);
+
+	KThread ab = new KThread(new LockOrderTest(a, b, held, go))
+	    .setName("a then b");
+	KThread ba = new KThread(new LockOrderTest(b, a, held, go))
+	    .setName("b then a");
+	ab.fork();
+	ba.fork();
+	held.P();
+	held.P();
+
+	go.V();
+	go.V();
+	for (int i=0; i<100 && deadlocks == 0; i++)
+	    KThread.yield();
+
+	Lib.assertTrue(deadlocks == 1);
+	Lib.assertTrue(lastCycle.size() == 2 && lastCycle.contains(ab) &&
+		       lastCycle.contains(ba));
+	System.out.println("DeadlockDetector Test 1 Passed.\n");
+
+	System.out.println("DeadlockDetector Test 2 (join through a lock):");
+
+	final Lock lock = new Lock();
+	final KThread[] joined = new KThread[1];
+	final Semaphore locked = new Semaphore(0);
+
+	joined[0] = new KThread(new Runnable() {
+		public void run() {
+		    locked.P();
+		    lock.acquire();
+		}
+	    }).setName("locker");
+	KThread joiner = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    locked.V();
+		    joined[0].join();
+		}
+	    }).setName("joiner");
+
+	joined[0].fork();
+	joiner.fork();
+	for (int i=0; i<100 && deadlocks == 1; i++)
+	    KThread.yield();
+
+	Lib.assertTrue(deadlocks == 2);
+	Lib.assertTrue(lastCycle.size() == 2 && lastCycle.contains(joiner) &&
+		       lastCycle.contains(joined[0]));
+	System.out.println("DeadlockDetector Test 2 Passed.");
+
+	halt = oldHalt;
+    }
+}
@@ -0,0 +1,727 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Comparator;
+import java.util.Iterator;
+
+/**
+ * A real-time scheduling class that runs above a normal scheduler, using
+ * earliest-deadline-first scheduling.
+ *
+ * <p>
+ * Every thread is scheduled by a <i>fallback</i> scheduler, chosen by the
+ * <tt>EDFScheduler.fallback</tt> configuration key, except threads that have
+ * declared a real-time reservation with <tt>setRealtime()</tt>. A reservation
+ * gives a thread a <i>period</i>, a relative <i>deadline</i> and a
+ * <i>budget</i> of clock ticks: at the start of every period a new job is
+ * released, which must be finished within the deadline and may use at most
+ * the budget. While a real-time thread is ready and has budget left, it runs
+ * before every normal thread, and among real-time threads the one with the
+ * earliest absolute deadline runs first.
+ *
+ * <p>
+ * Budgets are enforced by the timer interrupt. A thread that exhausts its
+ * budget is <i>throttled</i>: it only runs when no normal thread is ready,
+ * until its next job is released. A job that is not finished by its deadline
+ * counts as a deadline miss, which is reported through the <tt>'e'</tt> debug
+ * flag and counted per thread. Since the timer interrupts about every 500
+ * ticks, budgets are enforced and jobs released to that resolution.
+ *
+ * <p>
+ * Admission control rejects a reservation that would make the total density,
+ * the sum over real-time threads of budget divided by the smaller of deadline
+ * and period, exceed 1. When every deadline equals its period this is the
+ * exact EDF utilization bound; otherwise it is a sufficient condition.
+ *
+ * <p>
+ * Only the ready queue is affected by the real-time class. Lock, semaphore
+ * and join queues are the fallback scheduler's, so a real-time thread waiting
+ * on a lock donates only its normal priority.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new EDF scheduler above the fallback scheduler named by the
+     * <tt>EDFScheduler.fallback</tt> configuration key.
+     */
+    public EDFScheduler() {
+	this((Scheduler)
+	     Lib.constructObject(Config.getString("EDFScheduler.fallback",
+						  "nachos.threads.PriorityScheduler")));
+    }
+
+    /**
+     * Allocate a new EDF scheduler above the specified scheduler.
+     *
+     * @param	fallback	the scheduler for threads that are not
+     *				real-time.
+     */
+    public EDFScheduler(Scheduler fallback) {
+	this.fallback = fallback;
+    }
+
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return fallback.newThreadQueue(transferPriority);
+    }
+
+    /**
+     * Allocate the ready queue, which puts real-time threads with budget
+     * left ahead of the fallback scheduler's ready queue.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	readyQueue = new EDFQueue(fallback.newReadyQueue());
+	return readyQueue;
+    }
+
+    public int getPriority(KThread thread) {
+	return fallback.getPriority(thread);
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return fallback.getEffectivePriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	fallback.setPriority(thread, priority);
+    }
+
+    public boolean increasePriority() {
+	return fallback.increasePriority();
+    }
+
+    public boolean decreasePriority() {
+	return fallback.decreasePriority();
+    }
+
+    public int getQuantum() {
+	return fallback.getQuantum();
+    }
+
+    public void setQuantum(int quantum) {
+	fallback.setQuantum(quantum);
+    }
+
+    public long getQuantum(KThread thread) {
+	return fallback.getQuantum(thread);
+    }
+
+    /**
+     * Charge a real-time thread's budget for the ticks it has used since the
+     * last switch, and throttle it if the budget is exhausted.
+     */
+    public void threadDescheduled(KThread thread, boolean blocked) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	RealtimeState rt = realtime.get(thread);
+	if (rt != null && !rt.throttled) {
+	    rt.remaining -= time - lastSwitch;
+	    if (rt.remaining <= 0) {
+		rt.overruns++;
+		Lib.debug(dbgEDF, thread + " exhausted its budget at " + time);
+		readyQueue.throttle(rt);
+	    }
+	}
+	lastSwitch = time;
+
+	fallback.threadDescheduled(thread, blocked);
+    }
+
+    /**
+     * Drop the reservation of a real-time thread that finishes without
+     * calling <tt>clearRealtime()</tt>, so that its density is freed and its
+     * jobs are no longer released.
+     */
+    public void threadFinished(KThread thread) {
+	clearRealtime(thread);
+	fallback.threadFinished(thread);
+    }
+
+    /**
+     * Release the jobs that are due, and preempt the current thread if it
+     * has exhausted its budget or a real-time thread with an earlier
+     * deadline is ready.
+     */
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	releaseJobs(time);
+
+	RealtimeState first = readyQueue.pickNextRealtime();
+
+	RealtimeState rt = realtime.get(KThread.currentThread());
+	if (rt != null && !rt.throttled) {
+	    if (rt.remaining <= time - lastSwitch)
+		return true;
+
+	    return (first != null && first.absoluteDeadline < rt.absoluteDeadline);
+	}
+
+	if (first != null)
+	    return true;
+
+	return fallback.shouldPreempt();
+    }
+
+    /**
+     * Give the specified thread a real-time reservation, replacing any it
+     * already has. Its first job is released immediately. Must be called
+     * with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     * @param	period	the number of ticks between job releases.
+     * @param	deadline	the number of ticks after its release by which
+     *				each job must be finished.
+     * @param	budget	the number of ticks each job may run.
+     * @return	<tt>true</tt> if the reservation was admitted, or
+     *		<tt>false</tt> if it would make the total density exceed 1.
+     */
+    public boolean setRealtime(KThread thread, long period, long deadline,
+			       long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(budget > 0 && budget <= deadline && deadline <= period);
+
+	RealtimeState rt = realtime.get(thread);
+	double others = density - (rt == null ? 0 : rt.density());
+	double added = (double) budget / deadline;
+	if (others + added > 1.0 + 1e-9) {
+	    Lib.debug(dbgEDF, "rejected " + thread + ": density "
+		      + (others + added));
+	    return false;
+	}
+
+	if (rt != null)
+	    clearRealtime(thread);
+
+	rt = new RealtimeState(thread, period, deadline, budget);
+	realtime.put(thread, rt);
+	density = others + added;
+
+	rt.nextRelease = Machine.timer().getTime();
+	release(rt);
+	releases.add(rt);
+
+	return true;
+    }
+
+    /**
+     * Remove the real-time reservation of the specified thread, which is then
+     * scheduled by the fallback scheduler only. A reservation is also removed
+     * when its thread finishes. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread.
+     */
+    public void clearRealtime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	RealtimeState rt = realtime.remove(thread);
+	if (rt == null)
+	    return;
+
+	releases.remove(rt);
+	density = Math.max(density - rt.density(), 0);
+	readyQueue.demote(rt);
+    }
+
+    /**
+     * Mark the current thread's job finished, and sleep until its next job is
+     * released. The current thread must have a real-time reservation.
+     */
+    public void waitForNextPeriod() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	RealtimeState rt = realtime.get(thread);
+	Lib.assertTrue(rt != null);
+
+	long time = Machine.timer().getTime();
+	rt.completed = true;
+	if (time > rt.absoluteDeadline)
+	    miss(rt, time);
+
+	long wait = rt.nextRelease - time;
+
+	Machine.interrupt().restore(intStatus);
+
+	if (wait > 0)
+	    ThreadedKernel.alarm.waitUntil(wait);
+    }
+
+    /**
+     * Return the number of deadlines the specified thread has missed since
+     * its reservation was made.
+     *
+     * @param	thread	the thread.
+     * @return	the number of missed deadlines, or 0 if the thread has no
+     *		reservation.
+     */
+    public int getMisses(KThread thread) {
+	RealtimeState rt = realtime.get(thread);
+	return (rt == null) ? 0 : rt.misses;
+    }
+
+    /**
+     * Return the number of jobs of the specified thread that exhausted their
+     * budget.
+     *
+     * @param	thread	the thread.
+     * @return	the number of throttled jobs, or 0 if the thread has no
+     *		reservation.
+     */
+    public int getOverruns(KThread thread) {
+	RealtimeState rt = realtime.get(thread);
+	return (rt == null) ? 0 : rt.overruns;
+    }
+
+    /**
+     * Return the total density of the admitted reservations.
+     *
+     * @return	the sum of budget over deadline for all real-time threads.
+     */
+    public double getDensity() {
+	return density;
+    }
+
+    /**
+     * Print the real-time threads and their deadline misses.
+     */
+    public void print() {
+	System.out.println("EDF scheduler, density " + density + ":");
+	for (Iterator<RealtimeState> i=releases.iterator(); i.hasNext(); ) {
+	    RealtimeState rt = i.next();
+	    System.out.println(rt.thread + " period " + rt.period
+			       + ", deadline " + rt.deadline
+			       + ", budget " + rt.budget
+			       + ": " + rt.jobs + " jobs, "
+			       + rt.misses + " misses, "
+			       + rt.overruns + " overruns");
+	}
+    }
+
+    /**
+     * Release every job whose release time has come.
+     */
+    private void releaseJobs(long time) {
+	while (!releases.isEmpty() && releases.first().nextRelease <= time) {
+	    RealtimeState rt = releases.pollFirst();
+
+	    if (!rt.completed)
+		miss(rt, time);
+
+	    release(rt);
+	    releases.add(rt);
+	}
+    }
+
+    /**
+     * Start a new job for a real-time thread: refill its budget, move its
+     * deadline, and unthrottle it.
+     */
+    private void release(RealtimeState rt) {
+	readyQueue.unqueue(rt);
+
+	rt.jobs++;
+	rt.release = rt.nextRelease;
+	rt.nextRelease = rt.release + rt.period;
+	rt.absoluteDeadline = rt.release + rt.deadline;
+	rt.remaining = rt.budget;
+	rt.completed = false;
+	rt.missed = false;
+	rt.throttled = false;
+
+	readyQueue.requeue(rt);
+    }
+
+    private void miss(RealtimeState rt, long time) {
+	if (rt.missed)
+	    return;
+
+	rt.missed = true;
+	rt.misses++;
+	Lib.debug(dbgEDF, rt.thread + " missed its deadline "
+		  + rt.absoluteDeadline + " (now " + time + ")");
+    }
+
+    /**
+     * The ready queue of an EDF scheduler. Real-time threads with budget left
+     * are kept by absolute deadline; every other thread waits in the fallback
+     * scheduler's ready queue, and throttled real-time threads wait behind
+     * it.
+     */
+    protected class EDFQueue extends ThreadQueue {
+	EDFQueue(ThreadQueue fallbackQueue) {
+	    this.fallbackQueue = fallbackQueue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    RealtimeState rt = realtime.get(thread);
+	    if (rt == null) {
+		fallbackQueue.waitForAccess(thread);
+		return;
+	    }
+
+	    Lib.assertTrue(rt.waitingQueue == null);
+	    rt.waitingQueue = this;
+	    rt.sequence = numAdded++;
+	    requeue(rt);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    fallbackQueue.acquire(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    RealtimeState rt = eligible.pollFirst();
+	    if (rt == null) {
+		KThread thread = fallbackQueue.nextThread();
+		if (thread != null)
+		    return thread;
+
+		rt = throttled.poll();
+		if (rt == null)
+		    return null;
+	    }
+
+	    rt.waitingQueue = null;
+	    return rt.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    RealtimeState rt = realtime.get(thread);
+	    if (rt == null || rt.waitingQueue != this)
+		return fallbackQueue.remove(thread);
+
+	    unqueue(rt);
+	    rt.waitingQueue = null;
+	    return true;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    System.out.println("Real-time threads:");
+	    for (Iterator<RealtimeState> i=eligible.iterator(); i.hasNext(); ) {
+		RealtimeState rt = i.next();
+		System.out.println(rt.thread + " Deadline: "
+				   + rt.absoluteDeadline + ", Remaining: "
+				   + rt.remaining + ".");
+	    }
+	    System.out.println("Throttled threads: " + throttled.size());
+	    fallbackQueue.print();
+	}
+
+	RealtimeState pickNextRealtime() {
+	    return eligible.isEmpty() ? null : eligible.first();
+	}
+
+	/**
+	 * Take a waiting real-time thread out of this queue, so that its
+	 * deadline or budget can change.
+	 */
+	void unqueue(RealtimeState rt) {
+	    if (rt.waitingQueue != this)
+		return;
+
+	    if (rt.throttled)
+		throttled.remove(rt);
+	    else
+		eligible.remove(rt);
+	}
+
+	/**
+	 * Put a real-time thread back in the right part of this queue, if it
+	 * is waiting on it.
+	 */
+	void requeue(RealtimeState rt) {
+	    if (rt.waitingQueue != this)
+		return;
+
+	    if (rt.throttled)
+		throttled.add(rt);
+	    else
+		eligible.add(rt);
+	}
+
+	void throttle(RealtimeState rt) {
+	    unqueue(rt);
+	    rt.throttled = true;
+	    requeue(rt);
+	}
+
+	/**
+	 * Move a thread whose reservation was removed into the fallback
+	 * scheduler's ready queue.
+	 */
+	void demote(RealtimeState rt) {
+	    if (rt.waitingQueue != this)
+		return;
+
+	    unqueue(rt);
+	    rt.waitingQueue = null;
+	    fallbackQueue.waitForAccess(rt.thread);
+	}
+
+	private ThreadQueue fallbackQueue;
+	private TreeSet<RealtimeState> eligible =
+	    new TreeSet<RealtimeState>(new DeadlineComparator());
+	private LinkedList<RealtimeState> throttled =
+	    new LinkedList<RealtimeState>();
+    }
+
+    /**
+     * The reservation and current job of a real-time thread.
+     */
+    protected class RealtimeState {
+	RealtimeState(KThread thread, long period, long deadline, long budget) {
+	    this.thread = thread;
+	    this.period = period;
+	    this.deadline = deadline;
+	    this.budget = budget;
+	    this.id = numAdded++;
+	}
+
+	double density() {
+	    return (double) budget / deadline;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The reservation. */
+	protected long period, deadline, budget;
+	/** The release time and absolute deadline of the current job. */
+	protected long release, absoluteDeadline;
+	/** The release time of the next job. */
+	protected long nextRelease;
+	/** The budget left to the current job. */
+	protected long remaining;
+	/** The state of the current job. */
+	protected boolean completed, missed, throttled;
+	/** Statistics. */
+	protected int jobs = 0, misses = 0, overruns = 0;
+	/** The ready queue this thread is waiting on, if any. */
+	protected EDFQueue waitingQueue = null;
+	/** Keeps threads with the same deadline FIFO. */
+	protected long sequence = 0;
+
+	private long id;
+    }
+
+    /**
+     * Orders real-time threads by absolute deadline, then FIFO.
+     */
+    private static class DeadlineComparator
+	implements Comparator<RealtimeState> {
+	public int compare(RealtimeState r1, RealtimeState r2) {
+	    if (r1.absoluteDeadline != r2.absoluteDeadline)
+		return (r1.absoluteDeadline < r2.absoluteDeadline) ? -1 : 1;
+	    if (r1.sequence != r2.sequence)
+		return (r1.sequence < r2.sequence) ? -1 : 1;
+	    return 0;
+	}
+    }
+
+    /**
+     * Orders reservations by next release time.
+     */
+    private static class ReleaseComparator
+	implements Comparator<RealtimeState> {
+	public int compare(RealtimeState r1, RealtimeState r2) {
+	    if (r1.nextRelease != r2.nextRelease)
+		return (r1.nextRelease < r2.nextRelease) ? -1 : 1;
+	    if (r1.id != r2.id)
+		return (r1.id < r2.id) ? -1 : 1;
+	    return 0;
+	}
+    }
+
+    private Scheduler fallback;
+    private EDFQueue readyQueue = null;
+    private HashMap<KThread, RealtimeState> realtime =
+	new HashMap<KThread, RealtimeState>();
+    private TreeSet<RealtimeState> releases =
+	new TreeSet<RealtimeState>(new ReleaseComparator());
+    private double density = 0;
+    private long lastSwitch = 0;
+    private long numAdded = 0;
+
+    private static final char dbgEDF = 'e';
+
+    /**
+     * A periodic real-time thread that burns a fixed number of ticks per job.
+     */
+    private static class PeriodicTest implements Runnable {
+	PeriodicTest(int work, int jobs) {
+	    this.work = work;
+	    this.jobs = jobs;
+	}
+
+	public void run() {
+	    EDFScheduler sched = (EDFScheduler) ThreadedKernel.scheduler;
+
+	    for (int job=0; job<jobs; job++) {
+		// each enable advances the clock by Stats.KernelTick
+		for (int i=0; i<work/Stats.KernelTick; i++) {
+		    Machine.interrupt().disable();
+		    Machine.interrupt().enable();
+		}
+		sched.waitForNextPeriod();
+	    }
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    misses = sched.getMisses(KThread.currentThread());
+	    overruns = sched.getOverruns(KThread.currentThread());
+	    sched.clearRealtime(KThread.currentThread());
+	    Machine.interrupt().restore(intStatus);
+
+	    done.V();
+	}
+
+	int misses, overruns;
+	private int work, jobs;
+    }
+
+    /**
+     * A normal thread that keeps the processor busy until it is told to stop.
+     */
+    private static class HogTest implements Runnable {
+	public void run() {
+	    while (!stop) {
+		Machine.interrupt().disable();
+		Machine.interrupt().enable();
+		KThread.yield();
+	    }
+	}
+
+	boolean stop = false;
+    }
+
+    private static Semaphore done;
+
+    /**
+     * Test if this module is working. The scheduling test must be run with
+     * <tt>ThreadedKernel.scheduler</tt> set to this class.
+     */
+    public static void selfTest() {
+	System.out.println("EDF Test 1 (admission control and ordering):");
+
+	EDFScheduler sched = new EDFScheduler(new RoundRobinScheduler());
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue ready = sched.newReadyQueue();
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	KThread n = new KThread().setName("n");
+
+	Lib.assertTrue(sched.setRealtime(a, 8000, 8000, 4000));
+	Lib.assertTrue(sched.setRealtime(b, 4000, 3000, 1500));
+	Lib.assertTrue(!sched.setRealtime(c, 4000, 4000, 1000));
+	Lib.assertTrue(sched.getDensity() == 1.0);
+
+	ready.waitForAccess(n);
+	ready.waitForAccess(a);
+	ready.waitForAccess(b);
+	ready.waitForAccess(c);
+	Lib.assertTrue(ready.nextThread() == b);
+	Lib.assertTrue(ready.nextThread() == a);
+	Lib.assertTrue(ready.nextThread() == n);
+	Lib.assertTrue(ready.nextThread() == c);
+
+	sched.clearRealtime(a);
+	Lib.assertTrue(sched.setRealtime(c, 4000, 4000, 1000));
+
+	Machine.interrupt().restore(intStatus);
+	System.out.println("EDF Test 1 Passed.\n");
+
+	if (!(ThreadedKernel.scheduler instanceof EDFScheduler)) {
+	    System.out.println("EDF Test 2 skipped: ThreadedKernel.scheduler "
+			       + "is not an EDFScheduler.");
+	    return;
+	}
+
+	System.out.println("EDF Test 2 (periodic threads against a CPU hog):");
+
+	sched = (EDFScheduler) ThreadedKernel.scheduler;
+	done = new Semaphore(0);
+
+	HogTest hog = new HogTest();
+	new KThread(hog).setName("hog").fork();
+
+	// two threads within budget, and one that needs four times its budget
+	PeriodicTest[] tests = new PeriodicTest[] {
+	    new PeriodicTest(1000, 6),
+	    new PeriodicTest(1500, 4),
+	    new PeriodicTest(2000, 3),
+	};
+	long[][] reservations = new long[][] {
+	    { 4000, 4000, 1500 },
+	    { 6000, 6000, 2000 },
+	    { 10000, 10000, 500 },
+	};
+
+	intStatus = Machine.interrupt().disable();
+	for (int i=0; i<tests.length; i++) {
+	    KThread thread = new KThread(tests[i]).setName("periodic" + i);
+	    Lib.assertTrue(sched.setRealtime(thread, reservations[i][0],
+					     reservations[i][1],
+					     reservations[i][2]));
+	    thread.fork();
+	}
+	Lib.assertTrue(!sched.setRealtime(new KThread(), 1000, 1000, 500));
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<tests.length; i++)
+	    done.P();
+	hog.stop = true;
+
+	for (int i=0; i<tests.length; i++) {
+	    System.out.println("periodic" + i + ": " + tests[i].misses
+			       + " misses, " + tests[i].overruns
+			       + " overruns");
+	}
+	Lib.assertTrue(tests[0].misses == 0 && tests[1].misses == 0);
+	Lib.assertTrue(tests[2].misses > 0 && tests[2].overruns > 0);
+	System.out.println("EDF Test 2 Passed.\n");
+
+	System.out.println("EDF Test 3 (a finished thread frees its reservation):");
+
+	KThread exiting = new KThread(new Runnable() {
+		public void run() {
+		}
+	    }).setName("exiting");
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(sched.getDensity() == 0);
+	Lib.assertTrue(sched.setRealtime(exiting, 4000, 4000, 3000));
+	Machine.interrupt().restore(intStatus);
+	exiting.fork();
+	exiting.join();
+
+	// let several periods pass, which would count misses for the dead thread
+	ThreadedKernel.alarm.waitUntil(10000);
+
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(sched.getDensity() == 0);
+	Lib.assertTrue(sched.getMisses(exiting) == 0);
+	KThread next = new KThread().setName("next");
+	Lib.assertTrue(sched.setRealtime(next, 4000, 4000, 3000));
+	sched.clearRealtime(next);
+	Machine.interrupt().restore(intStatus);
+	System.out.println("EDF Test 3 Passed.");
+    }
+}
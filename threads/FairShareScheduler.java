@@ -0,0 +1,598 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.TreeSet;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A scheduler that shares the processor fairly, in the style of the Linux
+ * completely fair scheduler.
+ *
+ * <p>
+ * Every thread has a <i>nice</i> value between -20 and 19, which is its
+ * priority under this scheduler, and a <i>virtual runtime</i>. Whenever a
+ * thread gives up the processor, its virtual runtime is advanced by the clock
+ * ticks it has just used, scaled by the weight of its nice value, so a thread
+ * with a lower nice value ages more slowly. Each queue keeps its waiting
+ * threads in a balanced tree ordered by virtual runtime, and the next thread
+ * to be dequeued is always the one with the smallest.
+ *
+ * <p>
+ * A thread that starts waiting after a long sleep is moved up to just behind
+ * the smallest virtual runtime of the threads that have been running, so a
+ * sleeper cannot build up credit and then monopolize the processor.
+ *
+ * <p>
+ * A fair-share scheduler must partially solve the priority inversion problem.
+ * Threads waiting through a lock or a join donate their virtual runtime: the
+ * owning thread is ordered by the smallest of its own virtual runtime and the
+ * effective virtual runtimes of its waiters, and while it runs on a donated
+ * virtual runtime, the donor is charged for the ticks it uses.
+ */
+public class FairShareScheduler extends Scheduler {
+    /**
+     * Allocate a new fair-share scheduler.
+     */
+    public FairShareScheduler() {
+    }
+
+    /**
+     * Allocate a new fair-share thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					donate virtual runtime from waiting
+     *					threads to the owning thread.
+     * @return	a new fair-share thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue(transferPriority);
+    }
+
+    /**
+     * Return the nice value of the specified thread.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getFairState(thread).nice;
+    }
+
+    /**
+     * Return the nice value of the specified thread. Donation does not
+     * change a thread's nice value, only its place in queues.
+     */
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Set the nice value of the specified thread.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= niceMinimum && priority <= niceMaximum);
+
+	getFairState(thread).nice = priority;
+    }
+
+    /**
+     * Lower the nice value of the current thread by one.
+     */
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int nice = getPriority(thread);
+	boolean changed = (nice > niceMinimum);
+	if (changed)
+	    setPriority(thread, nice-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Raise the nice value of the current thread by one.
+     */
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int nice = getPriority(thread);
+	boolean changed = (nice < niceMaximum);
+	if (changed)
+	    setPriority(thread, nice+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Charge the outgoing thread's virtual runtime for the clock ticks it
+     * has used since the last switch.
+     */
+    public void threadDescheduled(KThread thread, boolean blocked) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	FairState state = getFairState(thread);
+
+	// the thread was the leftmost ready thread when it was dispatched
+	if (state.dispatched) {
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+	    state.dispatched = false;
+	}
+
+	state.charge(time - lastSwitch);
+	lastSwitch = time;
+    }
+
+    /**
+     * Return the virtual runtime of the specified thread.
+     *
+     * @param	thread	the thread.
+     * @return	the virtual runtime of the thread, in weighted clock ticks.
+     */
+    public long getVruntime(KThread thread) {
+	return getFairState(thread).vruntime;
+    }
+
+    /**
+     * Return the weight of the specified nice value. A thread's virtual
+     * runtime advances by <tt>nice0Weight / weight(nice)</tt> per tick.
+     *
+     * @param	nice	the nice value.
+     * @return	the weight of the nice value.
+     */
+    public static int weight(int nice) {
+	return niceWeights[nice - niceMinimum];
+    }
+
+    /**
+     * The default nice value for a new thread.
+     */
+    public static final int niceDefault = 0;
+    /**
+     * The lowest nice value, which gets the most processor time.
+     */
+    public static final int niceMinimum = -20;
+    /**
+     * The highest nice value, which gets the least processor time.
+     */
+    public static final int niceMaximum = 19;
+
+    /**
+     * The weight of a thread with nice value 0.
+     */
+    public static final int nice0Weight = 1024;
+
+    /**
+     * Each nice level is worth about 10% of the processor relative to its
+     * neighbors. These are the weights used by Linux.
+     */
+    private static final int[] niceWeights = new int[] {
+	88761, 71755, 56483, 46273, 36291,
+	29154, 23254, 18705, 14949, 11916,
+	9548, 7620, 6100, 4904, 3906,
+	3121, 2501, 1991, 1586, 1277,
+	1024, 820, 655, 526, 423,
+	335, 272, 215, 172, 137,
+	110, 87, 70, 56, 45,
+	36, 29, 23, 18, 15,
+    };
+
+    /**
+     * How far behind the smallest running virtual runtime a sleeper may be
+     * placed when it starts waiting again.
+     */
+    public static final long sleeperCredit = Stats.TimerTicks;
+
+    /**
+     * Return the scheduling state of the specified thread. A new thread
+     * starts at the smallest virtual runtime of the threads that have been
+     * running.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected FairState getFairState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new FairState(thread, minVruntime);
+
+	return (FairState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by effective virtual
+     * runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	FairQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	    holder = null;
+	    tree = new TreeSet<FairState>(new VruntimeComparator());
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getFairState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getFairState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    FairState oldHolder = holder;
+	    holder = null;
+	    if (transferPriority && oldHolder != null) {
+		oldHolder.holdingQueues.remove(this);
+		oldHolder.updateEffectiveVruntime();
+	    }
+
+	    FairState winner = tree.pollFirst();
+	    if (winner == null)
+		return null;
+
+	    winner.waitingQueue = null;
+	    winner.dispatched = true;
+	    winner.take(this);
+
+	    return winner.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    FairState state = getFairState(thread);
+	    if (state.waitingQueue != this)
+		return false;
+
+	    Lib.assertTrue(tree.remove(state));
+	    state.waitingQueue = null;
+
+	    if (transferPriority && holder != null)
+		holder.updateEffectiveVruntime();
+
+	    return true;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the waiting thread with the smallest effective virtual
+	 *		runtime, or <tt>null</tt> if no thread is waiting.
+	 */
+	protected FairState pickNextThread() {
+	    if (tree.isEmpty())
+		return null;
+
+	    return tree.first();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    System.out.println("Current fair-share queue: ");
+	    for (Iterator<FairState> i=tree.iterator(); i.hasNext(); ) {
+		FairState state = i.next();
+		System.out.println(state.thread + " Nice: " + state.nice
+				   + ", Vruntime: " + state.vruntime
+				   + ", Effective Vruntime: "
+				   + state.effectiveVruntime + ".");
+	    }
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should donate virtual runtime from
+	 * waiting threads to the owning thread.
+	 */
+	public boolean transferPriority;
+	/** The thread that currently has access, if known. */
+	protected FairState holder;
+	/** The waiting threads, by effective virtual runtime. */
+	protected TreeSet<FairState> tree;
+    }
+
+    /**
+     * The scheduling state of a thread under a fair-share scheduler.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class FairState {
+	/**
+	 * Allocate a new <tt>FairState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 * @param	vruntime	the initial virtual runtime of the thread.
+	 */
+	public FairState(KThread thread, long vruntime) {
+	    this.thread = thread;
+	    this.nice = niceDefault;
+	    this.vruntime = vruntime;
+	    this.effectiveVruntime = vruntime;
+	    this.holdingQueues = new LinkedList<FairQueue>();
+	}
+
+	/**
+	 * Charge the specified number of clock ticks used by the associated
+	 * thread. If the thread ran on a donated virtual runtime, the ticks
+	 * are charged to the donor, scaled by the donor's weight, so a thread
+	 * that waits on a lock pays for the time its holder spends on its
+	 * behalf. Otherwise they are charged to this thread.
+	 *
+	 * @param	ticks	the clock ticks the thread has used.
+	 */
+	public void charge(long ticks) {
+	    FairState payer = findDonor();
+
+	    payer.vruntime += ticks * nice0Weight / weight(payer.nice);
+	    payer.updateEffectiveVruntime();
+	    if (payer != this)
+		updateEffectiveVruntime();
+	}
+
+	/**
+	 * Follow donations down from this thread to the waiting thread whose
+	 * own virtual runtime is this thread's effective virtual runtime.
+	 */
+	private FairState findDonor() {
+	    walkCount++;
+
+	    FairState donor = this;
+	    while (donor.effectiveVruntime < donor.vruntime) {
+		donor.walkMark = walkCount;
+
+		FairState next = null;
+		for (Iterator<FairQueue> i=donor.holdingQueues.iterator();
+		     i.hasNext(); ) {
+		    FairState first = i.next().pickNextThread();
+		    if (first != null &&
+			first.effectiveVruntime == donor.effectiveVruntime) {
+			next = first;
+			break;
+		    }
+		}
+
+		// stale after a change of nice value, or a cycle of waiters
+		if (next == null || next.walkMark == walkCount)
+		    break;
+
+		donor = next;
+	    }
+
+	    return donor;
+	}
+
+	/**
+	 * Recompute the effective virtual runtime of the associated thread,
+	 * and pass the change on to the thread it is donating to, if any.
+	 */
+	public void updateEffectiveVruntime() {
+	    long effective = vruntime;
+	    for (Iterator<FairQueue> i=holdingQueues.iterator(); i.hasNext(); ) {
+		FairState first = i.next().pickNextThread();
+		if (first != null)
+		    effective = Math.min(effective, first.effectiveVruntime);
+	    }
+
+	    if (effective == effectiveVruntime)
+		return;
+
+	    if (waitingQueue == null) {
+		effectiveVruntime = effective;
+		return;
+	    }
+
+	    FairQueue queue = waitingQueue;
+	    queue.tree.remove(this);
+	    effectiveVruntime = effective;
+	    queue.tree.add(this);
+
+	    if (queue.transferPriority && queue.holder != null &&
+		queue.holder != this)
+		queue.holder.updateEffectiveVruntime();
+	}
+
+	/**
+	 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+	 * the associated thread) is invoked on the specified queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 *
+	 * @see	nachos.threads.ThreadQueue#waitForAccess
+	 */
+	public void waitForAccess(FairQueue waitQueue) {
+	    Lib.assertTrue(waitingQueue == null);
+
+	    if (vruntime < minVruntime - sleeperCredit) {
+		vruntime = minVruntime - sleeperCredit;
+		updateEffectiveVruntime();
+	    }
+
+	    sequence = numAdded++;
+	    waitingQueue = waitQueue;
+	    waitQueue.tree.add(this);
+
+	    if (waitQueue.transferPriority && waitQueue.holder != null)
+		waitQueue.holder.updateEffectiveVruntime();
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt> without waiting for it.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquire
+	 */
+	public void acquire(FairQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.holder == null);
+	    Lib.assertTrue(waitQueue.tree.isEmpty());
+
+	    take(waitQueue);
+	}
+
+	void take(FairQueue waitQueue) {
+	    waitQueue.holder = this;
+	    if (waitQueue.transferPriority) {
+		holdingQueues.add(waitQueue);
+		updateEffectiveVruntime();
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The nice value of the associated thread. */
+	protected int nice;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime;
+	/** The smallest of the virtual runtimes of this thread and donors. */
+	protected long effectiveVruntime;
+	/** Keeps threads with the same effective virtual runtime FIFO. */
+	protected long sequence = 0;
+	/** <tt>true</tt> if this thread was dequeued since it last ran. */
+	protected boolean dispatched = false;
+	/** The queue that the associated thread is waiting on. */
+	protected FairQueue waitingQueue = null;
+	/** The queues owned by the associated thread that donate. */
+	protected LinkedList<FairQueue> holdingQueues;
+
+	private long walkMark = 0;
+    }
+
+    /**
+     * Orders threads by effective virtual runtime, then by the order in which
+     * they began waiting.
+     */
+    protected class VruntimeComparator implements Comparator<FairState> {
+	public int compare(FairState s1, FairState s2) {
+	    if (s1.effectiveVruntime != s2.effectiveVruntime)
+		return (s1.effectiveVruntime < s2.effectiveVruntime) ? -1 : 1;
+	    if (s1.sequence != s2.sequence)
+		return (s1.sequence < s2.sequence) ? -1 : 1;
+	    return 0;
+	}
+    }
+
+    private long minVruntime = 0;
+    private long lastSwitch = 0;
+    private long numAdded = 0;
+    private long walkCount = 0;
+
+    /**
+     * Burns CPU in short bursts until a deadline, counting the clock ticks it
+     * got.
+     */
+    private static class ShareTest implements Runnable {
+	ShareTest(long deadline) {
+	    this.deadline = deadline;
+	}
+
+	public void run() {
+	    while (Machine.timer().getTime() < deadline) {
+		long start = Machine.timer().getTime();
+		for (int i=0; i<10; i++) {
+		    Machine.interrupt().disable();
+		    Machine.interrupt().enable();
+		}
+		ticks += Machine.timer().getTime() - start;
+		KThread.yield();
+	    }
+	    done.V();
+	}
+
+	long ticks = 0;
+	private long deadline;
+    }
+
+    private static Semaphore done;
+
+    /**
+     * Test if this module is working. The share test must be run with
+     * <tt>ThreadedKernel.scheduler</tt> set to this class.
+     */
+    public static void selfTest() {
+	System.out.println("Fair-share Test 1 (donation through a lock):");
+
+	FairShareScheduler sched = new FairShareScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	sched.getFairState(a).charge(5000);
+	sched.getFairState(c).charge(3000);
+
+	ThreadQueue lock = sched.newThreadQueue(true);
+	ThreadQueue ready = sched.newThreadQueue(false);
+	lock.acquire(a);
+	ready.waitForAccess(a);
+	ready.waitForAccess(c);
+
+	// b has run the least; waiting on a's lock it pulls a ahead of c
+	lock.waitForAccess(b);
+	Lib.assertTrue(sched.getFairState(a).effectiveVruntime == 0);
+	Lib.assertTrue(ready.nextThread() == a);
+
+	Lib.assertTrue(lock.nextThread() == b);
+	Lib.assertTrue(sched.getFairState(a).effectiveVruntime == 5000);
+
+	Machine.interrupt().restore(intStatus);
+	System.out.println("Fair-share Test 1 Passed.\n");
+
+	if (!(ThreadedKernel.scheduler instanceof FairShareScheduler)) {
+	    System.out.println("Fair-share Test 2 skipped: "
+			       + "ThreadedKernel.scheduler is not a "
+			       + "FairShareScheduler.");
+	    return;
+	}
+
+	System.out.println("Fair-share Test 2 (CPU shares by nice value):");
+
+	int[] nices = new int[] { 0, 0, 5 };
+	done = new Semaphore(0);
+	long deadline = Machine.timer().getTime() + 100000;
+	ShareTest[] tests = new ShareTest[nices.length];
+	KThread[] threads = new KThread[nices.length];
+	long totalWeight = 0;
+	for (int i=0; i<nices.length; i++) {
+	    tests[i] = new ShareTest(deadline);
+	    threads[i] = new KThread(tests[i]).setName("share" + i);
+	    intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(threads[i], nices[i]);
+	    Machine.interrupt().restore(intStatus);
+	    totalWeight += weight(nices[i]);
+	}
+	for (int i=0; i<nices.length; i++)
+	    threads[i].fork();
+	// join() would donate our virtual runtime to the first thread
+	for (int i=0; i<nices.length; i++)
+	    done.P();
+
+	long totalTicks = 0;
+	for (int i=0; i<nices.length; i++)
+	    totalTicks += tests[i].ticks;
+	for (int i=0; i<nices.length; i++) {
+	    double expected = (double) weight(nices[i]) / totalWeight;
+	    double actual = (double) tests[i].ticks / totalTicks;
+	    System.out.println("nice " + nices[i] + ": expected share "
+			       + (int) (expected*1000)/10.0 + "%, got "
+			       + (int) (actual*1000)/10.0 + "%");
+	    Lib.assertTrue(Math.abs(actual - expected) < 0.05);
+	}
+	System.out.println("Fair-share Test 2 Passed.");
+    }
+}
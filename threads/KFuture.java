@@ -0,0 +1,241 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * The result of an operation that completes later, such as an I/O request.
+ *
+ * <p>
+ * Whatever performs the operation calls <tt>complete()</tt>, which may be
+ * done from an interrupt handler. Meanwhile the thread that started it can go
+ * on to start others, and then wait for one of them with <tt>waitAny()</tt>
+ * or all of them with <tt>waitAll()</tt>, instead of dedicating a blocked
+ * thread to each one. <tt>then()</tt> chains a continuation that runs on the
+ * system <tt>WorkQueue</tt> once the result is ready.
+ *
+ * @param	<T>	the type of the result.
+ */
+public class KFuture<T> {
+    /**
+     * Allocate a new future that has not completed.
+     */
+    public KFuture() {
+    }
+
+    /**
+     * A step in a chain of futures, run on a worker thread.
+     *
+     * @param	<T>	the type of the result it is given.
+     * @param	<U>	the type of the result it produces.
+     */
+    public interface Continuation<T,U> {
+	/**
+	 * Compute the next result from the result of a future.
+	 *
+	 * @param	value	the result of the future.
+	 * @return	the result of the future returned by <tt>then()</tt>.
+	 */
+	public U apply(T value);
+    }
+
+    /**
+     * Set the result of this future, and wake the threads waiting for it. May
+     * be called from an interrupt handler. A future can only be completed
+     * once.
+     *
+     * @param	value	the result.
+     */
+    public void complete(T value) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(!done);
+	this.value = value;
+	done = true;
+
+	for (Iterator<Runnable> i=hooks.iterator(); i.hasNext(); )
+	    i.next().run();
+	hooks = null;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether this future has completed.
+     *
+     * @return	<tt>true</tt> if <tt>complete()</tt> has been called.
+     */
+    public boolean isDone() {
+	return done;
+    }
+
+    /**
+     * Wait for this future to complete, and return its result.
+     *
+     * @return	the result.
+     */
+    public T get() {
+	waitAny(this);
+	return value;
+    }
+
+    /**
+     * Return a future for the result of running a continuation on the result
+     * of this one. The continuation runs on the system <tt>WorkQueue</tt>
+     * once this future completes, so it may block.
+     *
+     * <p>
+     * The system queue has a single worker, which runs nothing else while a
+     * continuation is blocked. A continuation must therefore not wait for
+     * anything that is itself done on the system queue, such as
+     * <tt>PostOffice</tt> delivery or a later continuation, or it will wait
+     * forever.
+     *
+     * @param	continuation	the next step.
+     * @return	a future that completes with the result of the continuation.
+     */
+    public <U> KFuture<U> then(final Continuation<? super T,U> continuation) {
+	final KFuture<U> next = new KFuture<U>();
+	final WorkQueue workQueue = WorkQueue.getSystemQueue();
+
+	final Runnable step = new Runnable() {
+		public void run() {
+		    next.complete(continuation.apply(value));
+		}
+	    };
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (done) {
+	    workQueue.queue(step);
+	}
+	else {
+	    hooks.add(new Runnable() {
+		    public void run() { workQueue.queue(step); }
+		});
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return next;
+    }
+
+    /**
+     * Wait until at least one of the specified futures has completed.
+     *
+     * @param	futures	the futures to wait for.
+     * @return	the index of the first of them that has completed.
+     */
+    public static int waitAny(KFuture<?>... futures) {
+	Lib.assertTrue(futures.length > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int index = firstDone(futures);
+	if (index < 0) {
+	    final KThread thread = KThread.currentThread();
+	    final boolean[] woken = new boolean[1];
+	    Runnable wake = new Runnable() {
+		    public void run() {
+			if (!woken[0]) {
+			    woken[0] = true;
+			    thread.ready();
+			}
+		    }
+		};
+
+	    for (int i=0; i<futures.length; i++)
+		futures[i].hooks.add(wake);
+
+	    KThread.sleep();
+
+	    for (int i=0; i<futures.length; i++) {
+		if (!futures[i].done)
+		    futures[i].hooks.remove(wake);
+	    }
+
+	    index = firstDone(futures);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return index;
+    }
+
+    /**
+     * Wait until every one of the specified futures has completed. The
+     * thread sleeps at most once for each of them.
+     *
+     * @param	futures	the futures to wait for.
+     */
+    public static void waitAll(KFuture<?>... futures) {
+	for (int i=0; i<futures.length; i++)
+	    waitAny(futures[i]);
+    }
+
+    private static int firstDone(KFuture<?>[] futures) {
+	for (int i=0; i<futures.length; i++) {
+	    if (futures[i].done)
+		return i;
+	}
+	return -1;
+    }
+
+    private boolean done = false;
+    private T value = null;
+    /**
+     * Run with interrupts disabled when this future completes: wakeups of
+     * waiting threads, and continuations to queue.
+     */
+    private LinkedList<Runnable> hooks = new LinkedList<Runnable>();
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	// one thread starts several timed operations and waits for them
+	KFuture<?>[] futures = new KFuture<?>[4];
+	long start = Machine.timer().getTime();
+	for (int i=0; i<futures.length; i++) {
+	    final KFuture<Integer> future = new KFuture<Integer>();
+	    final int result = i;
+	    ThreadedKernel.alarm.schedule(1000 * (futures.length - i),
+					  new Runnable() {
+		    public void run() { future.complete(result); }
+		});
+	    futures[i] = future;
+	}
+
+	Lib.assertTrue(waitAny(futures) == futures.length - 1);
+	Lib.assertTrue(!futures[0].isDone());
+	waitAll(futures);
+	for (int i=0; i<futures.length; i++)
+	    Lib.assertTrue(futures[i].get().equals(i));
+	// they ran at the same time, not one after another
+	Lib.assertTrue(Machine.timer().getTime() - start < 1000 * 5);
+
+	// continuations run on a worker, in order
+	final KFuture<Integer> first = new KFuture<Integer>();
+	KFuture<String> chained = first.then(new Continuation<Integer,Integer>() {
+		public Integer apply(Integer value) {
+		    Lib.assertTrue(KThread.currentThread().getName()
+				   .startsWith("system worker"));
+		    return value + 1;
+		}
+	    }).then(new Continuation<Integer,String>() {
+		public String apply(Integer value) {
+		    return "result " + value;
+		}
+	    });
+	Lib.assertTrue(!chained.isDone());
+	first.complete(41);
+	Lib.assertTrue(chained.get().equals("result 42"));
+
+	// a continuation added after completion still runs
+	Lib.assertTrue(first.then(new Continuation<Integer,Boolean>() {
+		public Boolean apply(Integer value) {
+		    return value == 41;
+		}
+	    }).get());
+    }
+}
@@ -49,7 +49,7 @@ public class KThread {
 	    tcb = new TCB();
 	}	    
 	else {
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	    readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 	    readyQueue.acquire(this);	    
 
 	    currentThread = this;
@@ -195,6 +195,7 @@ public class KThread {
 	
 	
 		currentThread.status = statusFinished;
+		ThreadedKernel.scheduler.threadFinished(currentThread);
 
 		if (currentThread.joinWaitQueue != null) {
 		    KThread p = currentThread.joinWaitQueue.nextThread();
@@ -282,8 +283,11 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
+	    readyTime = Machine.timer().getTime();
 	    readyQueue.waitForAccess(this);
+	    readied = true;
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
@@ -304,8 +308,12 @@ public class KThread {
                 joinWaitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
                 joinWaitQueue.acquire(this);
             }
+			if (DeadlockDetector.enabled)
+			    DeadlockDetector.waitFor(this);
 			joinWaitQueue.waitForAccess(currentThread);
 			sleep();
+			if (DeadlockDetector.enabled)
+			    DeadlockDetector.woke();
 		}
 		Lib.assertTrue(status == statusFinished);
 		Machine.interrupt().restore(intStatus);
@@ -337,12 +345,26 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * While no thread is ready, the idle thread lets the clock run by enabling
+     * interrupts, which runs any interrupt handlers that are due, instead of
+     * yielding to itself every tick. It yields once a handler readies a
+     * thread, or sooner if the timer interrupt preempts it.
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    while (!readied) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		    }
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -356,9 +378,18 @@ public class KThread {
      * using <tt>run()</tt>.
      */
     private static void runNextThread() {
+	currentThread.account();
+	if (currentThread.status == statusFinished)
+	    recordFinished(currentThread);
+
+	ThreadedKernel.scheduler.threadDescheduled(currentThread,
+						   currentThread.status != statusReady);
+
 	KThread nextThread = readyQueue.nextThread();
-	if (nextThread == null)
+	if (nextThread == null) {
 	    nextThread = idleThread;
+	    readied = false;
+	}
 
 	nextThread.run();
     }
@@ -414,6 +445,16 @@ public class KThread {
 	Machine.autoGrader().runningThread(this);
 	
 	status = statusRunning;
+	dispatchTime = Machine.timer().getTime();
+	accountTime = dispatchTime;
+	dispatches++;
+
+	if (readyTime >= 0) {
+	    long wait = dispatchTime - readyTime;
+	    readyTicks += wait;
+	    ThreadedKernel.scheduler.getReadyWaitHistogram().add(wait);
+	    readyTime = -1;
+	}
 
 	if (toBeDestroyed != null) {
 	    toBeDestroyed.tcb.destroy();
@@ -431,6 +472,126 @@ public class KThread {
     	Lib.assertTrue(this == currentThread);
     }
 
+    /**
+     * Note whether this thread is about to run user code or kernel code, so
+     * that the ticks it uses are counted as user or kernel ticks. A
+     * <tt>UThread</tt> switches to user mode when it enters or returns to its
+     * program, and to kernel mode when it takes an exception.
+     *
+     * @param	userMode	<tt>true</tt> if the thread is about to run user
+     *				code.
+     */
+    public void setUserMode(boolean userMode) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(this == currentThread);
+
+	account();
+	this.userMode = userMode;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of ticks this thread has run in user mode.
+     *
+     * @return	the user ticks of this thread.
+     */
+    public long getUserTicks() {
+	return userTicks;
+    }
+
+    /**
+     * Return the number of ticks this thread has run in kernel mode.
+     *
+     * @return	the kernel ticks of this thread.
+     */
+    public long getKernelTicks() {
+	return kernelTicks;
+    }
+
+    /**
+     * Return the number of ticks this thread has spent in the ready queue.
+     *
+     * @return	the ready queue ticks of this thread.
+     */
+    public long getReadyTicks() {
+	return readyTicks;
+    }
+
+    /**
+     * Return the number of times this thread has been dispatched.
+     *
+     * @return	the number of dispatches.
+     */
+    public int getDispatches() {
+	return dispatches;
+    }
+
+    /**
+     * Charge the ticks since the last charge to the current thread's user or
+     * kernel ticks.
+     */
+    private void account() {
+	long time = Machine.timer().getTime();
+
+	if (userMode)
+	    userTicks += time - accountTime;
+	else
+	    kernelTicks += time - accountTime;
+
+	accountTime = time;
+    }
+
+    /**
+     * Keep a finished thread if it is one of the threads that have waited
+     * longest in the ready queue.
+     */
+    private static void recordFinished(KThread thread) {
+	ListIterator<KThread> i = slowestThreads.listIterator();
+	while (i.hasNext()) {
+	    if (i.next().readyTicks < thread.readyTicks) {
+		i.previous();
+		break;
+	    }
+	}
+	i.add(thread);
+
+	if (slowestThreads.size() > maxSlowestThreads)
+	    slowestThreads.removeLast();
+    }
+
+    /**
+     * Print the ready queue wait histogram of the scheduler, and the
+     * accounting of the current thread and of the finished threads that
+     * waited longest in the ready queue. Called when the kernel terminates, if
+     * <tt>ThreadedKernel.printAccounting</tt> is set.
+     */
+    public static void printAccounting() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	currentThread.account();
+
+	String name = ThreadedKernel.scheduler.getClass().getName();
+	ThreadedKernel.scheduler.getReadyWaitHistogram().print(
+	    "Ready queue wait (" + name.substring(name.lastIndexOf('.')+1)
+	    + ")");
+
+	System.out.println("Thread accounting (ready, user, kernel ticks, "
+			   + "dispatches):");
+	printAccounting(currentThread);
+	for (Iterator<KThread> i=slowestThreads.iterator(); i.hasNext(); )
+	    printAccounting(i.next());
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static void printAccounting(KThread thread) {
+	System.out.println("\t" + thread + ": " + thread.readyTicks + ", "
+			   + thread.userTicks + ", " + thread.kernelTicks + ", "
+			   + thread.dispatches);
+    }
+
     private static class PingTest implements Runnable {
     	PingTest(int which) {
     		this.which = which;
@@ -486,6 +647,30 @@ public class KThread {
     	}
     }
     
+    private static class HogTest implements Runnable {
+    	private long ticks;
+    	
+    	HogTest(long ticks) {
+    		this.ticks = ticks;
+    	}
+	
+    	public void run() {
+    		long end = Machine.timer().getTime() + ticks;
+    		while (Machine.timer().getTime() < end) {
+    			Machine.interrupt().disable();
+    			Machine.interrupt().enable();
+    		}
+    	}
+    }
+    
+    private static class LatencyTest implements Runnable {
+    	long forkTime, firstRunTime;
+	
+    	public void run() {
+    		firstRunTime = Machine.timer().getTime();
+    	}
+    }
+    
     private static void selfTestPing() {
     	System.out.println("Ping Test:");
 		
@@ -524,6 +709,56 @@ public class KThread {
 		System.out.println("joined");
     }
     
+    /**
+     * Fork two CPU-bound threads that never yield, then an interactive thread,
+     * and return how long the interactive thread waited to run for the first
+     * time, with the specified scheduler quantum.
+     */
+    private static long preemptionLatency(int quantum) {
+    	boolean intStatus = Machine.interrupt().disable();
+    	int oldQuantum = ThreadedKernel.scheduler.getQuantum();
+    	ThreadedKernel.scheduler.setQuantum(quantum);
+    	Machine.interrupt().restore(intStatus);
+    	
+    	KThread[] hogs = new KThread[2];
+    	for (int i = 0; i < hogs.length; i++) {
+    		hogs[i] = new KThread(new HogTest(5000)).setName("hog #" + i);
+    		hogs[i].fork();
+    	}
+    	LatencyTest latency = new LatencyTest();
+    	KThread interactive = new KThread(latency).setName("interactive");
+    	latency.forkTime = Machine.timer().getTime();
+    	interactive.fork();
+    	
+    	for (int i = 0; i < hogs.length; i++) {
+    		hogs[i].join();
+    	}
+    	interactive.join();
+    	
+    	intStatus = Machine.interrupt().disable();
+    	ThreadedKernel.scheduler.setQuantum(oldQuantum);
+    	Machine.interrupt().restore(intStatus);
+    	
+    	return latency.firstRunTime - latency.forkTime;
+    }
+    
+    private static void selfTestPreemption() {
+    	System.out.println("Preemption Test:");
+    	
+    	long before = preemptionLatency(0);
+    	long after = preemptionLatency(500);
+    	System.out.println("time to first run: " + before
+    			+ " ticks without preemption, " + after
+    			+ " ticks with a 500 tick quantum");
+    	// a single lottery run can go either way
+    	if (!(ThreadedKernel.scheduler instanceof LotteryScheduler) ||
+    			ThreadedKernel.scheduler instanceof StrideScheduler) {
+    		Lib.assertTrue(after < before);
+    	}
+    	
+    	System.out.println("Preemption Test Passed");
+    }
+    
     private static void selfTestAlarm() {
     	System.out.println("Alarm Test");
 		
@@ -554,6 +789,7 @@ public class KThread {
 		selfTestPing();
 		selfTestJoin();
 		selfTestAlarm();
+		selfTestPreemption();
     }
 
     private static final char dbgThread = 't';
@@ -565,6 +801,23 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * The quantum of this thread, or 0 to use the scheduler's.
+     *
+     * @see	nachos.threads.Scheduler#getQuantum(KThread)
+     */
+    int quantum = 0;
+    /** The time at which this thread was last dispatched. */
+    long dispatchTime = 0;
+
+    /** The time at which this thread was put on the ready queue, or -1. */
+    private long readyTime = -1;
+    /** The time up to which this thread's ticks have been charged. */
+    private long accountTime = 0;
+    private boolean userMode = false;
+    private long readyTicks = 0, userTicks = 0, kernelTicks = 0;
+    private int dispatches = 0;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -599,4 +852,13 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    /**
+     * Set when a thread is readied, and cleared when the ready queue runs
+     * empty, so the idle thread knows when to yield.
+     */
+    private static boolean readied = false;
+
+    /** The finished threads that waited longest, longest first. */
+    private static LinkedList<KThread> slowestThreads = new LinkedList<KThread>();
+    private static final int maxSlowestThreads = 10;
 }
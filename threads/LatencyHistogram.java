@@ -0,0 +1,111 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A histogram of tick counts with power-of-two buckets. Bucket 0 counts
+ * samples of 0 ticks, and bucket <i>i</i> counts samples of at least
+ * <i>2<sup>i-1</sup></i> and less than <i>2<sup>i</sup></i> ticks, so adding a
+ * sample takes constant time and the histogram takes constant space.
+ */
+public class LatencyHistogram {
+    /**
+     * Allocate a new, empty histogram.
+     */
+    public LatencyHistogram() {
+    }
+
+    /**
+     * Add a sample.
+     *
+     * @param	ticks	the sample, which must not be negative.
+     */
+    public void add(long ticks) {
+	Lib.assertTrue(ticks >= 0);
+
+	buckets[64 - Long.numberOfLeadingZeros(ticks)]++;
+	count++;
+	total += ticks;
+	max = Math.max(max, ticks);
+    }
+
+    /**
+     * Return the number of samples.
+     *
+     * @return	the number of samples.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    /**
+     * Return the mean of the samples.
+     *
+     * @return	the mean, or 0 if there are no samples.
+     */
+    public double getMean() {
+	return (count == 0) ? 0 : (double) total / count;
+    }
+
+    /**
+     * Return the largest sample.
+     *
+     * @return	the largest sample, or 0 if there are no samples.
+     */
+    public long getMax() {
+	return max;
+    }
+
+    /**
+     * Return an upper bound on the specified percentile: the exclusive upper
+     * end of the bucket that contains it, or the largest sample if that is
+     * smaller.
+     *
+     * @param	p	the percentile, between 0 and 100.
+     * @return	an upper bound on the <i>p</i>th percentile.
+     */
+    public long getPercentile(double p) {
+	Lib.assertTrue(p >= 0 && p <= 100);
+
+	long rank = (long) Math.ceil(count * p / 100);
+	long seen = 0;
+	for (int i=0; i<buckets.length; i++) {
+	    seen += buckets[i];
+	    if (seen >= rank && seen > 0)
+		return Math.min(upperBound(i), max);
+	}
+
+	return max;
+    }
+
+    /**
+     * Print a summary line, followed by one line for each bucket that is not
+     * empty.
+     *
+     * @param	title	the name of what was measured.
+     */
+    public void print(String title) {
+	System.out.println(title + ": " + count + " samples, mean "
+			   + Math.round(getMean()) + ", p50 <= "
+			   + getPercentile(50) + ", p99 <= "
+			   + getPercentile(99) + ", max " + max);
+
+	for (int i=0; i<buckets.length; i++) {
+	    if (buckets[i] == 0)
+		continue;
+
+	    long low = (i == 0) ? 0 : upperBound(i-1);
+	    System.out.println("\t[" + low + ", " + upperBound(i) + "): "
+			       + buckets[i]);
+	}
+    }
+
+    private static long upperBound(int bucket) {
+	return (bucket >= 63) ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    private long[] buckets = new long[65];
+    private long count = 0;
+    private long total = 0;
+    private long max = 0;
+}
@@ -19,11 +19,23 @@ import nachos.machine.*;
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
  */
-public class Lock {
+public class Lock extends AbstractLock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(true);
+    }
+
+    /**
+     * Allocate a new lock whose waiters may or may not donate their priority
+     * to its holder.
+     *
+     * @param	transferPriority	<tt>true</tt> if the waiters should donate
+     *					their priority to the holder.
+     */
+    protected Lock(boolean transferPriority) {
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
     }
 
     /**
@@ -37,8 +49,15 @@ public class Lock {
 	KThread thread = KThread.currentThread();
 
 	if (lockHolder != null) {
+	    long start = LockProfiler.enabled ? profiler.blocked(lockHolder) : 0;
+	    if (DeadlockDetector.enabled)
+		DeadlockDetector.waitFor(this);
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
+	    if (DeadlockDetector.enabled)
+		DeadlockDetector.woke();
+	    if (LockProfiler.enabled)
+		profiler.woke(start);
 	}
 	else {
 	    waitQueue.acquire(thread);
@@ -47,6 +66,9 @@ public class Lock {
 
 	Lib.assertTrue(lockHolder == thread);
 
+	if (LockProfiler.enabled)
+	    profiler.acquired();
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -58,22 +80,19 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (LockProfiler.enabled)
+	    profiler.released();
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
 	Machine.interrupt().restore(intStatus);
     }
 
-    /**
-     * Test if the current thread holds this lock.
-     *
-     * @return	true if the current thread holds this lock.
-     */
-    public boolean isHeldByCurrentThread() {
-	return (lockHolder == KThread.currentThread());
+    KThread getHolder() {
+	return lockHolder;
     }
 
     private KThread lockHolder = null;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue waitQueue;
 }
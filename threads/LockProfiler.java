@@ -0,0 +1,309 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Records contention on one synchronization primitive: how often it was
+ * acquired, how long threads waited for it and held it, how many threads slept
+ * on it at once, and how many times a waiter donated priority to its holder.
+ *
+ * <p>
+ * Profiling is turned on by setting <tt>LockProfiler.enabled</tt> to true in
+ * the configuration file. <tt>Lock</tt>, <tt>Semaphore</tt>,
+ * <tt>Condition2</tt> and <tt>SynchList</tt> only allocate a profiler when it
+ * is, and test <tt>LockProfiler.enabled</tt> before each call into it, so an
+ * operation that does not wait costs a single branch when profiling is off.
+ *
+ * <p>
+ * Each profiler is tagged with the place its primitive was created, taken
+ * from the first stack frame outside the primitives themselves. The first
+ * time a primitive makes a thread wait, its profiler is remembered, and
+ * <tt>print()</tt>, which is called when the kernel terminates, lists the
+ * ones threads waited on the longest.
+ */
+public class LockProfiler {
+    /**
+     * Allocate a new profiler for a primitive that is being created.
+     *
+     * @param	kind	the kind of primitive, such as <tt>"Lock"</tt>.
+     */
+    public LockProfiler(String kind) {
+	this.kind = kind;
+	this.site = creationSite();
+    }
+
+    /**
+     * Record that the current thread got the primitive: it acquired the lock,
+     * decremented the semaphore, or was woken from the condition variable.
+     * Starts the hold time that <tt>released()</tt> stops, for the primitives
+     * that have a holder.
+     */
+    public void acquired() {
+	acquisitions++;
+	acquireTime = Machine.timer().getTime();
+    }
+
+    /**
+     * Record that the current thread released the primitive it acquired.
+     * Only locks have a release point; a semaphore or condition variable has
+     * no holder, so its hold time is not reported.
+     */
+    public void released() {
+	holds++;
+	holdTicks += Machine.timer().getTime() - acquireTime;
+    }
+
+    /**
+     * Record that the current thread is about to sleep on the primitive. If
+     * the primitive has a holder that waiters donate priority to, interrupts
+     * must be disabled.
+     *
+     * @param	holder	the thread that waiters donate priority to, or
+     *			<tt>null</tt> if there is none.
+     * @return	the time the wait started, to be passed to <tt>woke()</tt>.
+     */
+    public long blocked(KThread holder) {
+	if (contended++ == 0)
+	    profiled.add(this);
+
+	sleepers++;
+	maxSleepers = Math.max(maxSleepers, sleepers);
+
+	if (holder != null) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (ThreadedKernel.scheduler.getEffectivePriority() >
+		ThreadedKernel.scheduler.getEffectivePriority(holder))
+		donations++;
+	}
+
+	return Machine.timer().getTime();
+    }
+
+    /**
+     * Record that the current thread woke up after sleeping on the primitive.
+     *
+     * @param	start	the value returned by <tt>blocked()</tt>.
+     */
+    public void woke(long start) {
+	long ticks = Machine.timer().getTime() - start;
+
+	sleepers--;
+	waitTicks += ticks;
+	maxWaitTicks = Math.max(maxWaitTicks, ticks);
+    }
+
+    /**
+     * Return the number of times the primitive was acquired.
+     *
+     * @return	the number of acquisitions.
+     */
+    public long getAcquisitions() {
+	return acquisitions;
+    }
+
+    /**
+     * Return the number of times a thread slept on the primitive.
+     *
+     * @return	the number of contended operations.
+     */
+    public long getContended() {
+	return contended;
+    }
+
+    /**
+     * Return the total number of ticks threads slept on the primitive.
+     *
+     * @return	the total wait time.
+     */
+    public long getWaitTicks() {
+	return waitTicks;
+    }
+
+    /**
+     * Return the largest number of threads that slept on the primitive at
+     * once.
+     *
+     * @return	the largest number of sleepers.
+     */
+    public int getMaxSleepers() {
+	return maxSleepers;
+    }
+
+    /**
+     * Return the number of times a thread that slept on the primitive had a
+     * higher effective priority than its holder, and so donated priority.
+     *
+     * @return	the number of donations.
+     */
+    public long getDonations() {
+	return donations;
+    }
+
+    /**
+     * Return a string naming the kind of primitive and where it was created.
+     *
+     * @return	a string describing the profiled primitive.
+     */
+    public String toString() {
+	return kind + " created at " + site;
+    }
+
+    /**
+     * Print the primitives that threads waited on the longest, at most
+     * <tt>LockProfiler.top</tt> of them (10 by default). Does nothing unless
+     * profiling is enabled.
+     */
+    public static void print() {
+	if (!enabled)
+	    return;
+
+	ArrayList<LockProfiler> sorted = new ArrayList<LockProfiler>(profiled);
+	Collections.sort(sorted, new Comparator<LockProfiler>() {
+		public int compare(LockProfiler a, LockProfiler b) {
+		    return Long.compare(b.waitTicks, a.waitTicks);
+		}
+	    });
+
+	int top = Math.min(Config.getInteger("LockProfiler.top", 10),
+			   sorted.size());
+
+	System.out.println("Top " + top + " of " + sorted.size()
+			   + " contended primitives (acquisitions, contended, "
+			   + "wait ticks, max wait, average hold or - if it has "
+			   + "no holder, max sleepers, donations):");
+	for (int i=0; i<top; i++) {
+	    LockProfiler p = sorted.get(i);
+	    String hold = (p.holds == 0) ? "-" : "" + p.holdTicks / p.holds;
+	    System.out.println("\t" + p + ": " + p.acquisitions + ", "
+			       + p.contended + ", " + p.waitTicks + ", "
+			       + p.maxWaitTicks + ", " + hold + ", "
+			       + p.maxSleepers + ", " + p.donations);
+	}
+    }
+
+    /**
+     * Return the first stack frame that is not in this class or in the
+     * constructor of a synchronization primitive.
+     */
+    private static String creationSite() {
+	StackTraceElement[] trace = new Throwable().getStackTrace();
+
+	for (int i=1; i<trace.length; i++) {
+	    String name = trace[i].getClassName();
+	    boolean inPrimitive = name.startsWith("nachos.threads.") &&
+		primitives.contains(name.substring("nachos.threads.".length()));
+
+	    if (!inPrimitive || !trace[i].getMethodName().equals("<init>"))
+		return trace[i].toString();
+	}
+
+	return "unknown";
+    }
+
+    /**
+     * <tt>true</tt> if primitives should be profiled. Read once from the
+     * configuration, so that testing it is as cheap as testing a constant.
+     */
+    public static final boolean enabled =
+	Config.getBoolean("LockProfiler.enabled", false);
+
+    private static final List<String> primitives =
+	Arrays.asList(new String[] {
+	    "LockProfiler", "AbstractLock", "Lock", "AdaptiveLock",
+	    "CeilingLock", "ReadWriteLock",
+	    "Semaphore", "Condition", "Condition2", "SynchList" });
+
+    /** The profilers of the primitives that have made a thread wait. */
+    private static ArrayList<LockProfiler> profiled =
+	new ArrayList<LockProfiler>();
+
+    private String kind;
+    private String site;
+
+    private long acquisitions = 0;
+    private long contended = 0;
+    private long donations = 0;
+    private long waitTicks = 0, maxWaitTicks = 0;
+    private long holds = 0, holdTicks = 0;
+    private long acquireTime;
+    private int sleepers = 0, maxSleepers = 0;
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	if (!enabled) {
+	    System.out.println("LockProfiler Test skipped: "
+			       + "LockProfiler.enabled is not set.");
+	    return;
+	}
+
+	System.out.println("LockProfiler Test (contended lock):");
+
+	final Lock lock = new Lock();
+	final Semaphore held = new Semaphore(0);
+	final Semaphore go = new Semaphore(0);
+
+	Lib.assertTrue(lock.profiler.toString().indexOf("selfTest") != -1);
+
+	KThread low = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    held.V();
+		    go.P();
+		    lock.release();
+		}
+	    }).setName("low");
+
+	KThread[] high = new KThread[3];
+	for (int i=0; i<high.length; i++) {
+	    high[i] = new KThread(new Runnable() {
+		    public void run() {
+			lock.acquire();
+			KThread.yield();
+			lock.release();
+		    }
+		}).setName("high " + i);
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(low, 1);
+	for (int i=0; i<high.length; i++)
+	    ThreadedKernel.scheduler.setPriority(high[i], 6);
+	Machine.interrupt().restore(intStatus);
+
+	low.fork();
+	held.P();
+	for (int i=0; i<high.length; i++)
+	    high[i].fork();
+
+	for (int i=0; i<100 && lock.profiler.getContended() < high.length; i++)
+	    KThread.yield();
+
+	go.V();
+	low.join();
+	for (int i=0; i<high.length; i++)
+	    high[i].join();
+
+	LockProfiler p = lock.profiler;
+	Lib.assertTrue(p.getAcquisitions() == 1 + high.length);
+	Lib.assertTrue(p.getContended() == high.length);
+	Lib.assertTrue(p.getMaxSleepers() == high.length);
+	Lib.assertTrue(p.getWaitTicks() > 0);
+	Lib.assertTrue(profiled.contains(p));
+
+	// only the first waiter raises the holder above its own priority
+	if (ThreadedKernel.scheduler.getClass() == PriorityScheduler.class)
+	    Lib.assertTrue(p.getDonations() == 1);
+
+	print();
+	System.out.println("LockProfiler Test Passed.");
+    }
+}
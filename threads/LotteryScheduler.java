@@ -2,8 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Iterator;
 
 /**
@@ -25,6 +24,11 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the effective tickets of its waiting threads in a Fenwick
+ * (binary indexed) tree, so holding a lottery and changing the tickets of a
+ * waiting thread both take <i>O(log n)</i> time in the number of waiters.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -32,7 +36,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +46,618 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).getTickets();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long tickets = getLotteryState(thread).getEffectiveTickets();
+	return (int) Math.min(tickets, Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= ticketsMinimum &&
+		       priority <= ticketsMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int tickets = getPriority(thread);
+	boolean changed = (tickets < ticketsMaximum);
+	if (changed)
+	    setPriority(thread, tickets+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int tickets = getPriority(thread);
+	boolean changed = (tickets > ticketsMinimum);
+	if (changed)
+	    setPriority(thread, tickets-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int ticketsDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int ticketsMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> whose waiting threads are weighed by their
+     * effective tickets. This class takes care of ticket transfer to the
+     * owning thread; subclasses decide how the next thread is chosen.
+     */
+    protected abstract class TicketQueue extends ThreadQueue {
+	TicketQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	    holder = null;
+	    totalTickets = 0;
+	    size = 0;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (transferPriority && holder != null)
+		holder.release(this);
+	    holder = null;
+
+	    LotteryState winner = pickNextThread();
+	    if (winner == null)
+		return null;
+
+	    remove(winner);
+	    dispatched(winner);
+	    winner.waitingQueue = null;
+	    winner.take(this);
+
+	    return winner.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState ts = getLotteryState(thread);
+	    if (ts.waitingQueue != this)
+		return false;
+
+	    remove(ts);
+	    ts.waitingQueue = null;
+
+	    if (transferPriority && holder != null)
+		holder.adjust(-ts.effectiveTickets);
+
+	    return true;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread to receive access, or <tt>null</tt> if
+	 *		no thread is waiting.
+	 */
+	protected abstract LotteryState pickNextThread();
+
+	/**
+	 * Return the sum of the effective tickets of all waiting threads.
+	 *
+	 * @return	the total number of tickets in this queue.
+	 */
+	public long totalTickets() {
+	    return totalTickets;
+	}
+
+	/**
+	 * Return the number of threads waiting in this queue.
+	 *
+	 * @return	the number of waiting threads.
+	 */
+	public int size() {
+	    return size;
+	}
+
+	void add(LotteryState ts) {
+	    size++;
+	    totalTickets += ts.effectiveTickets;
+	    insert(ts);
+	}
+
+	void remove(LotteryState ts) {
+	    delete(ts);
+	    totalTickets -= ts.effectiveTickets;
+	    size--;
+	}
+
+	void update(LotteryState ts, long delta) {
+	    totalTickets += delta;
+	    change(ts, delta);
+	}
+
+	/**
+	 * Start tracking a thread that has begun waiting on this queue.
+	 */
+	protected abstract void insert(LotteryState ts);
+
+	/**
+	 * Stop tracking a thread that is leaving this queue.
+	 */
+	protected abstract void delete(LotteryState ts);
+
+	/**
+	 * Note that the effective tickets of a waiting thread have already
+	 * changed by <i>delta</i>.
+	 */
+	protected abstract void change(LotteryState ts, long delta);
+
+	/**
+	 * Called when <tt>nextThread()</tt> has chosen and removed a thread.
+	 */
+	protected void dispatched(LotteryState ts) {
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+	/** The thread that currently has access, if known. */
+	protected LotteryState holder;
+
+	private long totalTickets;
+	private int size;
+    }
+
+    /**
+     * A <tt>TicketQueue</tt> that holds a lottery among its waiting threads.
+     * The effective tickets of the waiting threads are stored in a Fenwick
+     * tree indexed by a slot number assigned to each waiting thread. Slots
+     * are recycled when threads leave the queue.
+     */
+    protected class LotteryQueue extends TicketQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+	    slots = new LotteryState[initialCapacity+1];
+	    tree = new long[initialCapacity+1];
+	    freeSlots = new int[initialCapacity];
+	    numFree = 0;
+	    highSlot = 0;
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads and return the winner,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the winner of the lottery, or <tt>null</tt> if no thread
+	 *		is waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (size() == 0)
+		return null;
+
+	    long total = totalTickets();
+	    long winning = (long) (Lib.random() * total);
+	    if (winning >= total)
+		winning = total - 1;
+
+	    return slots[findSlot(winning)];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    System.out.println("Current lottery queue (" + totalTickets()
+			       + " tickets): ");
+	    for (int i=1; i<=highSlot; i++) {
+		if (slots[i] != null)
+		    System.out.println(slots[i].thread + " Tickets: "
+				       + slots[i].getTickets()
+				       + ", Effective Tickets: "
+				       + slots[i].getEffectiveTickets() + ".");
+	    }
+	}
+
+	/**
+	 * Give the specified thread a slot in the Fenwick tree.
+	 */
+	protected void insert(LotteryState ts) {
+	    int slot;
+	    if (numFree > 0) {
+		slot = freeSlots[--numFree];
+	    }
+	    else {
+		if (highSlot+1 >= slots.length)
+		    grow();
+		slot = ++highSlot;
+	    }
+
+	    ts.slot = slot;
+	    slots[slot] = ts;
+	    updateSlot(slot, ts.effectiveTickets);
+	}
+
+	/**
+	 * Take the specified thread's tickets out of the Fenwick tree and
+	 * recycle its slot.
+	 */
+	protected void delete(LotteryState ts) {
+	    updateSlot(ts.slot, -ts.effectiveTickets);
+	    slots[ts.slot] = null;
+	    freeSlots[numFree++] = ts.slot;
+	    ts.slot = 0;
+	}
+
+	protected void change(LotteryState ts, long delta) {
+	    updateSlot(ts.slot, delta);
+	}
+
+	/**
+	 * Add <i>delta</i> to the tickets held in the specified slot.
+	 */
+	private void updateSlot(int slot, long delta) {
+	    for (int i=slot; i<tree.length; i+=(i & -i))
+		tree[i] += delta;
+	}
+
+	/**
+	 * Find the slot holding ticket number <i>winning</i>, counting from
+	 * zero, by descending the Fenwick tree.
+	 */
+	private int findSlot(long winning) {
+	    int pos = 0;
+	    for (int step=Integer.highestOneBit(tree.length-1); step>0;
+		 step>>=1) {
+		if (pos+step < tree.length && tree[pos+step] <= winning) {
+		    pos += step;
+		    winning -= tree[pos];
+		}
+	    }
+	    return pos+1;
+	}
+
+	/**
+	 * Double the capacity of this queue and rebuild the Fenwick tree.
+	 */
+	private void grow() {
+	    int capacity = (slots.length-1) * 2;
+
+	    LotteryState[] newSlots = new LotteryState[capacity+1];
+	    System.arraycopy(slots, 0, newSlots, 0, slots.length);
+	    slots = newSlots;
+
+	    int[] newFree = new int[capacity];
+	    System.arraycopy(freeSlots, 0, newFree, 0, numFree);
+	    freeSlots = newFree;
+
+	    tree = new long[capacity+1];
+	    for (int i=1; i<=capacity; i++) {
+		if (slots[i] != null)
+		    tree[i] += slots[i].effectiveTickets;
+		int parent = i + (i & -i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+	}
+
+	private LotteryState[] slots;
+	private long[] tree;
+	private int[] freeSlots;
+	private int numFree;
+	private int highSlot;
+
+	private static final int initialCapacity = 8;
+    }
+
+    /**
+     * The scheduling state of a thread under a lottery scheduler. This
+     * includes the thread's own tickets, its effective tickets (its own plus
+     * everything donated to it), the queue it's waiting on, if any, and the
+     * queues it owns.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	    this.tickets = ticketsDefault;
+	    this.effectiveTickets = ticketsDefault;
+	    this.waitingQueue = null;
+	    this.slot = 0;
+	    this.holdingQueues = new LinkedList<TicketQueue>();
+	}
+
+	/**
+	 * Return the number of tickets held by the associated thread.
+	 *
+	 * @return	the tickets of the associated thread.
+	 */
+	public int getTickets() {
+	    return tickets;
+	}
+
+	/**
+	 * Return the effective tickets of the associated thread: its own
+	 * tickets plus the effective tickets of every thread waiting on a
+	 * queue it owns.
+	 *
+	 * @return	the effective tickets of the associated thread.
+	 */
+	public long getEffectiveTickets() {
+	    return effectiveTickets;
+	}
+
+	/**
+	 * Set the tickets of the associated thread to the specified value.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+	    adjust(delta);
+	}
+
+	/**
+	 * Add <i>delta</i> to the effective tickets of the associated thread,
+	 * and pass the change on to whichever thread it is donating to, and so
+	 * on down the chain of waiters.
+	 *
+	 * @param	delta	the change in effective tickets.
+	 */
+	protected void adjust(long delta) {
+	    if (delta == 0)
+		return;
+
+	    walkCount++;
+	    LotteryState ts = this;
+	    while (true) {
+		ts.walkMark = walkCount;
+		ts.effectiveTickets += delta;
+
+		TicketQueue queue = ts.waitingQueue;
+		if (queue == null)
+		    break;
+		queue.update(ts, delta);
+
+		// a waiter cycle means deadlock; don't spin on it forever
+		if (!queue.transferPriority || queue.holder == null ||
+		    queue.holder.walkMark == walkCount)
+		    break;
+		ts = queue.holder;
+	    }
+	}
+
+	/**
+	 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+	 * the associated thread) is invoked on the specified queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 *
+	 * @see	nachos.threads.ThreadQueue#waitForAccess
+	 */
+	public void waitForAccess(TicketQueue waitQueue) {
+	    Lib.assertTrue(waitingQueue == null);
+
+	    waitingQueue = waitQueue;
+	    waitQueue.add(this);
+
+	    if (waitQueue.transferPriority && waitQueue.holder != null)
+		waitQueue.holder.adjust(effectiveTickets);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt> without waiting for it.
+	 *
+	 * @see	nachos.threads.ThreadQueue#acquire
+	 */
+	public void acquire(TicketQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.holder == null);
+	    Lib.assertTrue(waitQueue.size() == 0);
+
+	    take(waitQueue);
+	}
+
+	/**
+	 * Become the owner of <tt>waitQueue</tt>, collecting the tickets of
+	 * any threads still waiting on it.
+	 */
+	void take(TicketQueue waitQueue) {
+	    waitQueue.holder = this;
+	    if (waitQueue.transferPriority) {
+		holdingQueues.add(waitQueue);
+		adjust(waitQueue.totalTickets());
+	    }
+	}
+
+	/**
+	 * Give up ownership of <tt>waitQueue</tt>, returning the tickets that
+	 * its waiters donated.
+	 */
+	void release(TicketQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.holder == this);
+
+	    holdingQueues.remove(waitQueue);
+	    adjust(-waitQueue.totalTickets());
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets held by the associated thread. */
+	protected int tickets;
+	/** The tickets held by the associated thread, plus donations. */
+	protected long effectiveTickets;
+	/** The queue that the associated thread is waiting on. */
+	protected TicketQueue waitingQueue;
+	/** The position of this thread in <tt>waitingQueue</tt>. */
+	protected int slot;
+	/** The queues owned by the associated thread that transfer tickets. */
+	protected LinkedList<TicketQueue> holdingQueues;
+
+	private long walkMark = 0;
+    }
+
+    private long walkCount = 0;
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	System.out.println("Lottery Scheduling Test 1 (ticket transfer):");
+
+	LotteryScheduler sched = new LotteryScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	// a holds lock1, b and c wait on it; d holds lock2, a waits on it
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	KThread d = new KThread().setName("d");
+	sched.setPriority(a, 2);
+	sched.setPriority(b, 5);
+	sched.setPriority(c, 10);
+	sched.setPriority(d, 3);
+
+	ThreadQueue lock1 = sched.newThreadQueue(true);
+	ThreadQueue lock2 = sched.newThreadQueue(true);
+	lock1.acquire(a);
+	lock2.acquire(d);
+	lock1.waitForAccess(b);
+	lock1.waitForAccess(c);
+	Lib.assertTrue(sched.getEffectivePriority(a) == 17);
+	lock2.waitForAccess(a);
+	Lib.assertTrue(sched.getEffectivePriority(d) == 20);
+
+	// tickets given to a waiter flow through to the end of the chain
+	sched.setPriority(b, 15);
+	Lib.assertTrue(sched.getEffectivePriority(a) == 27);
+	Lib.assertTrue(sched.getEffectivePriority(d) == 30);
+
+	// d releases lock2 to a, which then releases lock1
+	Lib.assertTrue(lock2.nextThread() == a);
+	Lib.assertTrue(sched.getEffectivePriority(d) == 3);
+	Lib.assertTrue(sched.getEffectivePriority(a) == 27);
+	KThread next = lock1.nextThread();
+	Lib.assertTrue(next == b || next == c);
+	Lib.assertTrue(sched.getEffectivePriority(a) == 2);
+	Lib.assertTrue(sched.getEffectivePriority(next) ==
+		       sched.getPriority(b) + sched.getPriority(c));
+
+	Machine.interrupt().restore(intStatus);
+	System.out.println("Lottery Scheduling Test 1 Passed.\n");
+
+	System.out.println("Lottery Scheduling Test 2 (draw cost and "
+			   + "proportional share, thousands of threads):");
+	benchmark(1000, 200000);
+	benchmark(4000, 200000);
+	benchmark(16000, 200000);
+	System.out.println("Lottery Scheduling Test 2 Passed.\n");
+    }
+
+    /**
+     * Hold <i>draws</i> lotteries among <i>numThreads</i> ready threads with
+     * tickets 1 through 10, putting each winner straight back in the queue.
+     * Reports the host time per draw and how far each ticket class's share of
+     * wins strays from its share of tickets.
+     */
+    private static void benchmark(int numThreads, int draws) {
+	LotteryScheduler sched = new LotteryScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue queue = sched.newThreadQueue(false);
+	long totalTickets = 0;
+	for (int i=0; i<numThreads; i++) {
+	    KThread thread = new KThread();
+	    sched.setPriority(thread, i%10 + 1);
+	    totalTickets += i%10 + 1;
+	    queue.waitForAccess(thread);
+	}
+
+	long[] wins = new long[11];
+	long start = System.nanoTime();
+	for (int i=0; i<draws; i++) {
+	    KThread winner = queue.nextThread();
+	    wins[sched.getPriority(winner)]++;
+	    queue.waitForAccess(winner);
+	}
+	long elapsed = System.nanoTime() - start;
+
+	double maxError = 0;
+	for (int tickets=1; tickets<=10; tickets++) {
+	    double expected = (double) tickets * (numThreads/10) / totalTickets;
+	    double actual = (double) wins[tickets] / draws;
+	    maxError = Math.max(maxError,
+				Math.abs(actual - expected) / expected);
+	}
+
+	System.out.println(numThreads + " threads, " + draws + " draws: "
+			   + (elapsed / draws) + " ns/draw, "
+			   + "max share error " + (int) (maxError*1000)/10.0
+			   + "%");
+	Lib.assertTrue(maxError < 0.05);
+
+	Machine.interrupt().restore(intStatus);
     }
 }
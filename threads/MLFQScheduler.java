@@ -0,0 +1,583 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Every thread is at one of several
+ * levels, level 0 being the most favored. Each queue dequeues from its lowest
+ * non-empty level, and within a level threads are served first-come
+ * first-serve.
+ *
+ * <p>
+ * Each level has a quantum, which doubles from one level to the next. The
+ * scheduler charges a thread for the clock ticks between being given the
+ * processor and giving it up:
+ *
+ * <ul>
+ * <li>a thread that has used a full quantum at its level moves down a level,
+ * so CPU-bound threads sink;
+ * <li>a thread that blocks (on a console read, an alarm, a lock, ...) before
+ * using its quantum moves up a level, so interactive threads rise;
+ * <li>every <tt>boostInterval</tt> ticks, every thread is moved back to level
+ * 0, so sunken threads cannot starve.
+ * </ul>
+ *
+ * <p>
+ * The number of levels, the level 0 quantum and the boost interval are read
+ * from the <tt>MLFQScheduler.levels</tt>, <tt>MLFQScheduler.quantum</tt> and
+ * <tt>MLFQScheduler.boostInterval</tt> keys of <tt>nachos.conf</tt>.
+ *
+ * <p>
+ * This scheduler does not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler configured from <tt>nachos.conf</tt>.
+     */
+    public MLFQScheduler() {
+	this(Config.getInteger("MLFQScheduler.levels", 3),
+	     Config.getInteger("MLFQScheduler.quantum", 500),
+	     Config.getInteger("MLFQScheduler.boostInterval", 20000));
+    }
+
+    /**
+     * Allocate a new MLFQ scheduler.
+     *
+     * @param	levels		the number of levels.
+     * @param	quantum		the quantum of level 0, in clock ticks. The
+     *				quantum doubles at each lower level.
+     * @param	boostInterval	the number of clock ticks between moving every
+     *				thread back to level 0.
+     */
+    public MLFQScheduler(int levels, int quantum, int boostInterval) {
+	Lib.assertTrue(levels > 0 && quantum > 0 && boostInterval > 0);
+
+	this.levels = levels;
+	this.quantum = quantum;
+	this.boostInterval = boostInterval;
+
+	occupancy = new int[levels];
+	dispatches = new long[levels];
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					transfer priority.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new LevelQueue();
+    }
+
+    /**
+     * Return the level of the specified thread as its priority, so that a
+     * thread at level 0 has the highest priority.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return levels - 1 - getLevel(thread);
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Charge the outgoing thread for the ticks since the last switch, and
+     * move it down or up a level accordingly. Also starts a new boost period
+     * if one is due.
+     */
+    public void threadDescheduled(KThread thread, boolean blocked) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	if (time - lastBoost >= boostInterval) {
+	    lastBoost = time;
+	    boostEpoch++;
+	    boosts++;
+	}
+
+	MLFQState state = getMLFQState(thread);
+	state.used += time - lastSwitch;
+	lastSwitch = time;
+
+	if (state.used >= getQuantum(state.level)) {
+	    if (state.level < levels-1) {
+		state.setLevel(state.level+1);
+		demotions++;
+	    }
+	    state.used = 0;
+	}
+	else if (blocked) {
+	    if (state.level > 0) {
+		state.setLevel(state.level-1);
+		promotions++;
+	    }
+	    state.used = 0;
+	}
+    }
+
+    /**
+     * Return the level of the specified thread.
+     *
+     * @param	thread	the thread.
+     * @return	the level of the thread, between 0 and <tt>levels-1</tt>.
+     */
+    public int getLevel(KThread thread) {
+	return getMLFQState(thread).level;
+    }
+
+    /**
+     * Return the quantum of the specified level.
+     *
+     * @param	level	the level.
+     * @return	the number of clock ticks a thread may run at this level
+     *		before moving down.
+     */
+    public long getQuantum(int level) {
+	return (long) quantum << level;
+    }
+
+    /**
+     * Return the rest of the quantum of the specified thread at its level,
+     * when preemption is turned on and the thread has no quantum of its own.
+     * Threads are then time sliced by level.
+     *
+     * @param	thread	the thread.
+     * @return	the thread's quantum, or 0 if it is not preempted.
+     */
+    public long getQuantum(KThread thread) {
+	long quantum = super.getQuantum(thread);
+	if (quantum == 0 || thread.quantum > 0)
+	    return quantum;
+
+	MLFQState state = getMLFQState(thread);
+	return Math.max(getQuantum(state.level) - state.used, 1);
+    }
+
+    /**
+     * Return the number of levels of this scheduler.
+     *
+     * @return	the number of levels.
+     */
+    public int getLevels() {
+	return levels;
+    }
+
+    /**
+     * Return the number of threads currently waiting, on any queue of this
+     * scheduler, at the specified level.
+     *
+     * @param	level	the level.
+     * @return	the number of waiting threads at that level.
+     */
+    public int getOccupancy(int level) {
+	return occupancy[level];
+    }
+
+    /**
+     * Return the number of times a thread at the specified level has been
+     * dequeued from any queue of this scheduler.
+     *
+     * @param	level	the level.
+     * @return	the number of threads dequeued at that level.
+     */
+    public long getDispatches(int level) {
+	return dispatches[level];
+    }
+
+    /**
+     * Print the per-level occupancy and dispatch counters, and the number of
+     * demotions, promotions and boosts so far.
+     */
+    public void print() {
+	for (int level=0; level<levels; level++) {
+	    System.out.println("Level " + level + " (quantum "
+			       + getQuantum(level) + "): "
+			       + occupancy[level] + " waiting, "
+			       + dispatches[level] + " dispatched");
+	}
+	System.out.println("Demotions " + demotions + ", promotions "
+			   + promotions + ", boosts " + boosts);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread, moving it back to
+     * level 0 if a boost has happened since it was last looked at.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected MLFQState getMLFQState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new MLFQState(thread);
+
+	MLFQState state = (MLFQState) thread.schedulingState;
+	if (state.boostEpoch != boostEpoch) {
+	    state.boostEpoch = boostEpoch;
+	    state.used = 0;
+	    if (state.level != 0)
+		state.setLevel(0);
+	}
+
+	return state;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level.
+     */
+    protected class LevelQueue extends ThreadQueue {
+	LevelQueue() {
+	    @SuppressWarnings({"unchecked", "rawtypes"})
+	    LinkedList<MLFQState>[] lists = new LinkedList[levels];
+	    this.lists = lists;
+	    for (int level=0; level<levels; level++)
+		lists[level] = new LinkedList<MLFQState>();
+	    boostEpoch = MLFQScheduler.this.boostEpoch;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    MLFQState state = getMLFQState(thread);
+	    Lib.assertTrue(state.waitingQueue == null);
+
+	    state.waitingQueue = this;
+	    state.sequence = numAdded++;
+	    add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    MLFQState state = pickNextThread();
+	    if (state == null)
+		return null;
+
+	    remove(state);
+	    state.waitingQueue = null;
+	    dispatches[state.level]++;
+
+	    return state.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    MLFQState state = getMLFQState(thread);
+	    if (state.waitingQueue != this)
+		return false;
+
+	    remove(state);
+	    state.waitingQueue = null;
+	    return true;
+	}
+
+	/**
+	 * This scheduler does not track which thread has access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the first thread of the lowest non-empty level.
+	 */
+	protected MLFQState pickNextThread() {
+	    applyBoost();
+
+	    for (int level=0; level<levels; level++) {
+		if (!lists[level].isEmpty())
+		    return lists[level].getFirst();
+	    }
+	    return null;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<levels; level++) {
+		System.out.print("Level " + level + ":");
+		for (Iterator<MLFQState> i=lists[level].iterator(); i.hasNext(); )
+		    System.out.print(" " + i.next().thread);
+		System.out.println();
+	    }
+	}
+
+	void add(MLFQState state) {
+	    lists[state.level].add(state);
+	    occupancy[state.level]++;
+	}
+
+	void remove(MLFQState state) {
+	    // a thread changing level has usually just been added
+	    Lib.assertTrue(lists[state.level].removeLastOccurrence(state));
+	    occupancy[state.level]--;
+	}
+
+	/**
+	 * If a boost has happened since this queue was last looked at, merge
+	 * every level into level 0, keeping the threads in the order they
+	 * began waiting.
+	 */
+	private void applyBoost() {
+	    if (boostEpoch == MLFQScheduler.this.boostEpoch)
+		return;
+	    boostEpoch = MLFQScheduler.this.boostEpoch;
+
+	    LinkedList<MLFQState> merged = new LinkedList<MLFQState>();
+	    while (true) {
+		MLFQState first = null;
+		for (int level=0; level<levels; level++) {
+		    if (!lists[level].isEmpty() &&
+			(first == null ||
+			 lists[level].getFirst().sequence < first.sequence))
+			first = lists[level].getFirst();
+		}
+		if (first == null)
+		    break;
+
+		lists[first.level].removeFirst();
+		occupancy[first.level]--;
+		first.level = 0;
+		first.used = 0;
+		first.boostEpoch = boostEpoch;
+		merged.add(first);
+	    }
+
+	    lists[0] = merged;
+	    occupancy[0] += merged.size();
+	}
+
+	private LinkedList<MLFQState>[] lists;
+	private long boostEpoch;
+	private long numAdded = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under an MLFQ scheduler: its level,
+     * the ticks it has used at that level, and the queue it's waiting on, if
+     * any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class MLFQState {
+	/**
+	 * Allocate a new <tt>MLFQState</tt> object and associate it with the
+	 * specified thread. New threads start at level 0.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public MLFQState(KThread thread) {
+	    this.thread = thread;
+	    this.level = 0;
+	    this.used = 0;
+	    this.boostEpoch = MLFQScheduler.this.boostEpoch;
+	}
+
+	/**
+	 * Move the associated thread to the specified level, moving it
+	 * between lists if it is waiting on a queue.
+	 *
+	 * @param	level	the new level.
+	 */
+	public void setLevel(int level) {
+	    if (waitingQueue != null) {
+		waitingQueue.remove(this);
+		this.level = level;
+		waitingQueue.add(this);
+	    }
+	    else {
+		this.level = level;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread. */
+	protected int level;
+	/** The clock ticks used by the associated thread at its level. */
+	protected long used;
+	/** The queue that the associated thread is waiting on. */
+	protected LevelQueue waitingQueue = null;
+	/** Keeps threads merged by a boost in the order they began waiting. */
+	protected long sequence = 0;
+	/** The boost period in which this state was last brought up to date. */
+	protected long boostEpoch;
+    }
+
+    private int levels;
+    private int quantum;
+    private int boostInterval;
+
+    private long lastSwitch = 0;
+    private long lastBoost = 0;
+    private long boostEpoch = 0;
+
+    private int[] occupancy;
+    private long[] dispatches;
+    private long demotions = 0;
+    private long promotions = 0;
+    private long boosts = 0;
+
+    /**
+     * Burns CPU for a number of clock ticks between yields, like a batch job.
+     */
+    private static class BatchTest implements Runnable {
+	BatchTest(int rounds, int burst) {
+	    this.rounds = rounds;
+	    this.burst = burst;
+	}
+
+	public void run() {
+	    for (int i=0; i<rounds; i++) {
+		burn(burst);
+		KThread.yield();
+	    }
+	}
+
+	private int rounds;
+	private int burst;
+    }
+
+    /**
+     * Sleeps on the alarm, then does a little work, like an interactive
+     * program waiting for keystrokes.
+     */
+    private static class InteractiveTest implements Runnable {
+	InteractiveTest(int rounds) {
+	    this.rounds = rounds;
+	}
+
+	public void run() {
+	    for (int i=0; i<rounds; i++) {
+		ThreadedKernel.alarm.waitUntil(1000);
+		burn(50);
+	    }
+	}
+
+	private int rounds;
+    }
+
+    /**
+     * Uses up a full quantum and yields, then blocks on the alarm well before
+     * its next quantum ends, and records its level after each.
+     */
+    private static class DemoteThenBlockTest implements Runnable {
+	DemoteThenBlockTest(MLFQScheduler sched) {
+	    this.sched = sched;
+	}
+
+	public void run() {
+	    startLevel = getLevel();
+	    burn((int) sched.getQuantum(startLevel));
+	    KThread.yield();
+	    demotedLevel = getLevel();
+	    burn(50);
+	    ThreadedKernel.alarm.waitUntil(100);
+	    promotedLevel = getLevel();
+	}
+
+	private int getLevel() {
+	    boolean intStatus = Machine.interrupt().disable();
+	    int level = sched.getLevel(KThread.currentThread());
+	    Machine.interrupt().restore(intStatus);
+	    return level;
+	}
+
+	private MLFQScheduler sched;
+	int startLevel, demotedLevel, promotedLevel;
+    }
+
+    /**
+     * Let about <i>ticks</i> clock ticks pass without giving up the CPU.
+     */
+    private static void burn(int ticks) {
+	long end = Machine.timer().getTime() + ticks;
+	while (Machine.timer().getTime() < end) {
+	    Machine.interrupt().disable();
+	    Machine.interrupt().enable();
+	}
+    }
+
+    /**
+     * Test if this module is working. Must be run with
+     * <tt>ThreadedKernel.scheduler</tt> set to this class.
+     */
+    public static void selfTest() {
+	if (!(ThreadedKernel.scheduler instanceof MLFQScheduler)) {
+	    System.out.println("MLFQ Test skipped: ThreadedKernel.scheduler "
+			       + "is not an MLFQScheduler.");
+	    return;
+	}
+	MLFQScheduler sched = (MLFQScheduler) ThreadedKernel.scheduler;
+
+	// no boost may move a thread back to level 0 during the test
+	boolean intStatus = Machine.interrupt().disable();
+	int boostInterval = sched.boostInterval;
+	sched.boostInterval = Integer.MAX_VALUE;
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("MLFQ Test 1 (a full quantum demotes, blocking "
+			   + "early promotes):");
+
+	long promotions = sched.promotions;
+	DemoteThenBlockTest demoteThenBlock = new DemoteThenBlockTest(sched);
+	KThread thread = new KThread(demoteThenBlock).setName("demote");
+	thread.fork();
+	thread.join();
+
+	Lib.assertTrue(demoteThenBlock.startLevel < sched.getLevels()-1);
+	Lib.assertTrue(demoteThenBlock.demotedLevel ==
+		       demoteThenBlock.startLevel + 1);
+	Lib.assertTrue(demoteThenBlock.promotedLevel ==
+		       demoteThenBlock.demotedLevel - 1);
+	Lib.assertTrue(sched.promotions > promotions);
+	System.out.println("MLFQ Test 1 Passed.");
+
+	System.out.println("MLFQ Test 2 (batch threads sink, interactive "
+			   + "threads stay on top):");
+
+	long demotions = sched.demotions;
+
+	KThread batch1 = new KThread(new BatchTest(20, 400)).setName("batch1");
+	KThread batch2 = new KThread(new BatchTest(20, 400)).setName("batch2");
+	KThread interactive =
+	    new KThread(new InteractiveTest(5)).setName("interactive");
+
+	batch1.fork();
+	batch2.fork();
+	interactive.fork();
+
+	interactive.join();
+
+	intStatus = Machine.interrupt().disable();
+	int batchLevel = Math.max(sched.getLevel(batch1),
+				  sched.getLevel(batch2));
+	int interactiveLevel = sched.getLevel(interactive);
+	System.out.println("batch level " + batchLevel + ", interactive level "
+			   + interactiveLevel);
+	sched.print();
+	Machine.interrupt().restore(intStatus);
+
+	Lib.assertTrue(interactiveLevel == 0);
+	Lib.assertTrue(batchLevel > 0 && sched.demotions > demotions);
+
+	batch1.join();
+	batch2.join();
+
+	intStatus = Machine.interrupt().disable();
+	sched.boostInterval = boostInterval;
+	Machine.interrupt().restore(intStatus);
+	System.out.println("MLFQ Test 2 Passed.");
+    }
+}
@@ -0,0 +1,201 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>phaser</i> is a reusable barrier whose number of parties can change
+ * between phases. Parties <tt>register()</tt> and
+ * <tt>arriveAndDeregister()</tt> as they come and go; once every registered
+ * party has arrived, the phase number advances and every thread waiting for
+ * the phase is woken in a single pass.
+ *
+ * <p>
+ * Unlike a <tt>CyclicBarrier</tt>, a party may <tt>arrive()</tt> without
+ * waiting, and a thread that is not a party may <tt>awaitAdvance()</tt> to
+ * wait for a phase to end.
+ */
+public class Phaser {
+    /**
+     * Allocate a new phaser.
+     *
+     * @param	parties	the number of parties registered at the start.
+     */
+    public Phaser(int parties) {
+	Lib.assertTrue(parties >= 0);
+
+	this.parties = parties;
+	unarrived = parties;
+    }
+
+    /**
+     * Add a party, which must arrive before the current phase can end.
+     *
+     * @return	the current phase number.
+     */
+    public int register() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	parties++;
+	unarrived++;
+	int phase = this.phase;
+
+	Machine.interrupt().restore(intStatus);
+	return phase;
+    }
+
+    /**
+     * Arrive at the current phase without waiting for it to end.
+     *
+     * @return	the number of the phase arrived at.
+     */
+    public int arrive() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int phase = this.phase;
+	arrived();
+
+	Machine.interrupt().restore(intStatus);
+	return phase;
+    }
+
+    /**
+     * Arrive at the current phase and remove a party, so that later phases
+     * do not wait for it.
+     *
+     * @return	the number of the phase arrived at.
+     */
+    public int arriveAndDeregister() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(parties > 0);
+
+	int phase = this.phase;
+	parties--;
+	arrived();
+
+	Machine.interrupt().restore(intStatus);
+	return phase;
+    }
+
+    /**
+     * Arrive at the current phase, and wait for every other party to arrive.
+     *
+     * @return	the number of the next phase.
+     */
+    public int arriveAndAwaitAdvance() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int phase = this.phase;
+	arrived();
+	awaitAdvance(phase);
+
+	Machine.interrupt().restore(intStatus);
+	return phase + 1;
+    }
+
+    /**
+     * Wait for the specified phase to end. Returns immediately if it already
+     * has.
+     *
+     * @param	phase	the phase to wait for.
+     * @return	the current phase number.
+     */
+    public int awaitAdvance(int phase) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (phase == this.phase) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+	phase = this.phase;
+
+	Machine.interrupt().restore(intStatus);
+	return phase;
+    }
+
+    /**
+     * Return the current phase number.
+     *
+     * @return	the number of phases that have ended.
+     */
+    public int getPhase() {
+	return phase;
+    }
+
+    /**
+     * Return the number of registered parties.
+     *
+     * @return	the number of parties.
+     */
+    public int getParties() {
+	return parties;
+    }
+
+    /**
+     * Count an arrival at the current phase, and end the phase if it was the
+     * last one. Must be called with interrupts disabled.
+     */
+    private void arrived() {
+	Lib.assertTrue(unarrived > 0);
+
+	if (--unarrived > 0)
+	    return;
+
+	phase++;
+	unarrived = parties;
+
+	KThread thread;
+	while ((thread = waitQueue.nextThread()) != null)
+	    thread.ready();
+    }
+
+    private int parties;
+    private int unarrived;
+    private int phase = 0;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final Phaser phaser = new Phaser(1);
+	final int[] finished = new int[1];
+
+	// workers join and leave while the main thread steps through phases
+	for (int i=0; i<4; i++) {
+	    final int phases = i + 1;
+	    phaser.register();
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int p=0; p<phases; p++)
+			    Lib.assertTrue(phaser.arriveAndAwaitAdvance()
+					   == p + 1);
+			finished[0]++;
+			phaser.arriveAndDeregister();
+		    }
+		}).setName("worker " + i).fork();
+	}
+	Lib.assertTrue(phaser.getParties() == 5);
+
+	for (int p=0; p<4; p++)
+	    Lib.assertTrue(phaser.arriveAndAwaitAdvance() == p + 1);
+
+	// the last worker leaves in the phase after its fourth
+	int phase = phaser.arrive();
+	Lib.assertTrue(phaser.awaitAdvance(phase) == phase + 1);
+	Lib.assertTrue(finished[0] == 4 && phaser.getParties() == 1);
+
+	// a thread that is not a party can wait for a phase to end
+	final int next = phaser.getPhase();
+	KThread observer = new KThread(new Runnable() {
+		public void run() {
+		    Lib.assertTrue(phaser.awaitAdvance(next) == next + 1);
+		}
+	    }).setName("observer");
+	observer.fork();
+	KThread.yield();
+	phaser.arrive();
+	observer.join();
+    }
+}
@@ -170,6 +170,31 @@ public class PriorityScheduler extends Scheduler {
 	    return ret.thread;
 	}
 
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState ts = getThreadState(thread);
+	    if (ts.waitingQueue != this)
+		return false;
+
+	    Lib.assertTrue(stablePQ.remove(ts));
+	    ts.waitingQueue = null;
+
+	    // the holder may have been running on the removed thread's priority
+	    if (transferPriority && holder != null) {
+		int eff = holder.getPriority();
+		Iterator<PriorityQueue> iter = holder.holdingQueues.iterator();
+		while (iter.hasNext()) {
+		    ThreadState next = iter.next().pickNextThread();
+		    if (next != null && next.getEffectivePriority() > eff)
+			eff = next.getEffectivePriority();
+		}
+		holder.setEffectivePriority(eff);
+	    }
+
+	    return true;
+	}
+
 	/**
 	 * Return the next thread that <tt>nextThread()</tt> would return,
 	 * without modifying the state of this queue.
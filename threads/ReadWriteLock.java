@@ -0,0 +1,519 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * A lock that can be held by many readers at once, or by one writer.
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait behind
+ * it, so a steady stream of readers cannot starve writers. When the last
+ * holder releases the lock, a waiting writer gets it if there is one, and
+ * otherwise every waiting reader gets it together. A reader may
+ * <tt>upgrade()</tt> to a writer, which takes precedence over waiting
+ * writers, and a writer may <tt>downgrade()</tt> to a reader without letting
+ * another writer in between.
+ *
+ * <p>
+ * Waiting readers, writers and the upgrading reader sleep on three queues
+ * created with <tt>transferPriority</tt> set. A thread queue can only have one
+ * owner, so the queues are given to one of the holders at a time, the
+ * <i>donee</i>, and waiters donate priority to it. When the donee releases the
+ * lock or starts waiting to upgrade, the queues are moved to another holder by
+ * draining and re-adding their waiters, so every holder that still blocks the
+ * waiters is boosted in turn until the last one releases.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Acquire this lock for reading, waiting while a writer holds it or is
+     * waiting for it. The current thread must not already hold this lock.
+     */
+    public void acquireRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(!holds(thread));
+
+	if (writer == null && waitingWriters == 0 && upgrader == null) {
+	    readers.add(thread);
+	    if (donee == null)
+		setDonee(thread);
+	}
+	else {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Acquire this lock for writing, waiting until no other thread holds it.
+     * The current thread must not already hold this lock.
+     */
+    public void acquireWrite() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(!holds(thread));
+
+	if (writer == null && readers.isEmpty()) {
+	    writer = thread;
+	    setDonee(thread);
+	}
+	else {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release this lock, which the current thread holds for reading.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(readers.remove(thread));
+
+	released(thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release this lock, which the current thread holds for writing.
+     */
+    public void releaseWrite() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(writer == thread);
+
+	writer = null;
+	released(thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Turn the current thread's read hold into a write hold, waiting for the
+     * other readers to release the lock. Only one reader can wait to upgrade
+     * at a time; if two did, neither could ever proceed.
+     *
+     * @return	<tt>true</tt> if the current thread now holds the lock for
+     *		writing, or <tt>false</tt> if another reader is already
+     *		waiting to upgrade, in which case the current thread still holds
+     *		the lock for reading.
+     */
+    public boolean upgrade() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(readers.contains(thread));
+
+	if (upgrader != null) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	if (readers.size() == 1) {
+	    readers.remove(thread);
+	    writer = thread;
+	}
+	else {
+	    upgrader = thread;
+	    if (donee == thread)
+		setDonee(pickDonee());
+	    upgradeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Turn the current thread's write hold into a read hold. Waiting readers
+     * are let in with it unless a writer is waiting.
+     */
+    public void downgrade() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(writer == thread);
+
+	writer = null;
+	readers.add(thread);
+	grant();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading.
+     *
+     * @return	true if the current thread holds this lock for reading.
+     */
+    public boolean isReadHeldByCurrentThread() {
+	return readers.contains(KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    private boolean holds(KThread thread) {
+	return (writer == thread || readers.contains(thread));
+    }
+
+    /**
+     * Let waiting threads in after a holder has released the lock, and move
+     * the queues away from the holder if it was the donee.
+     */
+    private void released(KThread thread) {
+	grant();
+
+	if (donee == thread)
+	    setDonee(pickDonee());
+    }
+
+    /**
+     * Give the lock to the waiting threads that may now have it.
+     */
+    private void grant() {
+	if (writer != null)
+	    return;
+
+	if (upgrader != null) {
+	    if (readers.size() == 1) {
+		Lib.assertTrue(upgradeQueue.nextThread() == upgrader);
+		owners[upgradeIndex] = upgrader;
+		readers.remove(upgrader);
+		writer = upgrader;
+		upgrader = null;
+		writer.ready();
+		setDonee(writer);
+	    }
+	    return;
+	}
+
+	if (waitingWriters > 0) {
+	    if (readers.isEmpty()) {
+		writer = writeQueue.nextThread();
+		owners[writeIndex] = writer;
+		waitingWriters--;
+		writer.ready();
+		setDonee(writer);
+	    }
+	    return;
+	}
+
+	if (waitingReaders > 0) {
+	    KThread thread;
+	    while ((thread = readQueue.nextThread()) != null) {
+		readers.add(thread);
+		thread.ready();
+	    }
+	    owners[readIndex] = null;
+	    waitingReaders = 0;
+	    setDonee(pickDonee());
+	}
+    }
+
+    /**
+     * Return the holder that should receive donations: the writer, or a
+     * reader that is not waiting to upgrade, or the upgrading reader.
+     */
+    private KThread pickDonee() {
+	if (writer != null)
+	    return writer;
+
+	for (KThread thread : readers) {
+	    if (thread != upgrader)
+		return thread;
+	}
+
+	return upgrader;
+    }
+
+    /**
+     * Give all three wait queues to the specified holder.
+     */
+    private void setDonee(KThread thread) {
+	donee = thread;
+	for (int i=0; i<queues.length; i++)
+	    giveQueue(i, thread);
+    }
+
+    /**
+     * Give a wait queue to the specified thread, draining its waiters and
+     * adding them back so that they donate to the new owner.
+     */
+    private void giveQueue(int i, KThread thread) {
+	if (owners[i] == thread)
+	    return;
+
+	LinkedList<KThread> waiting = new LinkedList<KThread>();
+	if (owners[i] != null) {
+	    KThread waiter;
+	    while ((waiter = queues[i].nextThread()) != null)
+		waiting.add(waiter);
+	}
+
+	owners[i] = thread;
+	if (thread != null)
+	    queues[i].acquire(thread);
+
+	for (KThread waiter : waiting)
+	    queues[i].waitForAccess(waiter);
+    }
+
+    /** The thread holding this lock for writing, if any. */
+    private KThread writer = null;
+    /** The threads holding this lock for reading. */
+    private LinkedList<KThread> readers = new LinkedList<KThread>();
+    /** The reader waiting to upgrade, if any. */
+    private KThread upgrader = null;
+    private int waitingReaders = 0, waitingWriters = 0;
+
+    /** The holder that owns the wait queues. */
+    private KThread donee = null;
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue upgradeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+
+    private static final int readIndex = 0, writeIndex = 1, upgradeIndex = 2;
+    private ThreadQueue[] queues =
+	new ThreadQueue[] { readQueue, writeQueue, upgradeQueue };
+    /** The thread each queue was last given to. */
+    private KThread[] owners = new KThread[queues.length];
+
+    /**
+     * Does a 95/5 mix of reads and writes on a shared table, checking that
+     * writers are exclusive. Each operation sleeps while holding the lock, so
+     * readers that share the lock overlap their sleeps.
+     */
+    private static class MixTest implements Runnable {
+	MixTest(ReadWriteLock rwLock, Lock lock, int[] table, int ops,
+		long seed) {
+	    this.rwLock = rwLock;
+	    this.lock = lock;
+	    this.table = table;
+	    this.ops = ops;
+	    this.random = new Random(seed);
+	}
+
+	public void run() {
+	    for (int i=0; i<ops; i++) {
+		boolean write = (random.nextInt(100) < 5);
+
+		if (rwLock != null) {
+		    if (write)
+			rwLock.acquireWrite();
+		    else
+			rwLock.acquireRead();
+		}
+		else {
+		    lock.acquire();
+		}
+
+		if (write) {
+		    writing++;
+		    Lib.assertTrue(writing == 1 && reading == 0);
+		    int value = table[0];
+		    ThreadedKernel.alarm.waitUntil(holdTicks);
+		    table[0] = value + 1;
+		    writing--;
+		}
+		else {
+		    reading++;
+		    Lib.assertTrue(writing == 0);
+		    maxReading = Math.max(maxReading, reading);
+		    ThreadedKernel.alarm.waitUntil(holdTicks);
+		    reading--;
+		}
+
+		if (rwLock != null) {
+		    if (write)
+			rwLock.releaseWrite();
+		    else
+			rwLock.releaseRead();
+		}
+		else {
+		    lock.release();
+		}
+
+		writes += write ? 1 : 0;
+	    }
+	}
+
+	int writes = 0;
+	private ReadWriteLock rwLock;
+	private Lock lock;
+	private int[] table;
+	private int ops;
+	private Random random;
+    }
+
+    private static int reading, writing, maxReading;
+    /** How long each operation holds the lock, sleeping on the alarm. */
+    private static final long holdTicks = 100;
+
+    /**
+     * Run the 95/5 mix with the specified lock and return the elapsed ticks.
+     */
+    private static long mixTest(ReadWriteLock rwLock, Lock lock) {
+	reading = writing = maxReading = 0;
+	int[] table = new int[1];
+
+	MixTest[] tests = new MixTest[10];
+	KThread[] threads = new KThread[tests.length];
+	long start = Machine.timer().getTime();
+	for (int i=0; i<threads.length; i++) {
+	    tests[i] = new MixTest(rwLock, lock, table, 100, i);
+	    threads[i] = new KThread(tests[i]).setName("mix " + i);
+	    threads[i].fork();
+	}
+
+	int writes = 0;
+	for (int i=0; i<threads.length; i++) {
+	    threads[i].join();
+	    writes += tests[i].writes;
+	}
+	Lib.assertTrue(table[0] == writes);
+
+	return Machine.timer().getTime() - start;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	System.out.println("ReadWriteLock Test 1 (95/5 read/write mix):");
+
+	long rwTicks = mixTest(new ReadWriteLock(), null);
+	int rwMaxReading = maxReading;
+	long lockTicks = mixTest(null, new Lock());
+
+	System.out.println("1000 operations: ReadWriteLock " + rwTicks
+			   + " ticks (up to " + rwMaxReading
+			   + " concurrent readers), Lock " + lockTicks
+			   + " ticks");
+	Lib.assertTrue(rwMaxReading > 1);
+	System.out.println("ReadWriteLock Test 1 Passed.\n");
+
+	System.out.println("ReadWriteLock Test 2 (upgrade and downgrade):");
+
+	final ReadWriteLock rw = new ReadWriteLock();
+	final Semaphore step = new Semaphore(0);
+
+	rw.acquireRead();
+	KThread other = new KThread(new Runnable() {
+		public void run() {
+		    rw.acquireRead();
+		    step.V();
+		    while (rw.upgrader == null)
+			KThread.yield();
+		    Lib.assertTrue(!rw.upgrade());
+		    rw.releaseRead();
+		}
+	    }).setName("other reader");
+	other.fork();
+	step.P();
+	Lib.assertTrue(rw.upgrade());
+	Lib.assertTrue(rw.isWriteHeldByCurrentThread());
+	rw.downgrade();
+	Lib.assertTrue(rw.isReadHeldByCurrentThread());
+	rw.releaseRead();
+	other.join();
+
+	System.out.println("ReadWriteLock Test 2 Passed.\n");
+
+	if (ThreadedKernel.scheduler.getClass() != PriorityScheduler.class) {
+	    System.out.println("ReadWriteLock Test 3 skipped: "
+			       + "ThreadedKernel.scheduler is not a "
+			       + "PriorityScheduler.");
+	    return;
+	}
+
+	System.out.println("ReadWriteLock Test 3 (donation to readers):");
+
+	final Semaphore held = new Semaphore(0);
+	final Semaphore[] go = new Semaphore[] {
+	    new Semaphore(0), new Semaphore(0)
+	};
+	KThread[] low = new KThread[2];
+	for (int i=0; i<low.length; i++) {
+	    final int which = i;
+	    low[i] = new KThread(new Runnable() {
+		    public void run() {
+			rw.acquireRead();
+			held.V();
+			go[which].P();
+			rw.releaseRead();
+		    }
+		}).setName("low reader " + i);
+	}
+	KThread high = new KThread(new Runnable() {
+		public void run() {
+		    rw.acquireWrite();
+		    rw.releaseWrite();
+		}
+	    }).setName("high writer");
+
+	boolean intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(low[0], 1);
+	ThreadedKernel.scheduler.setPriority(low[1], 1);
+	ThreadedKernel.scheduler.setPriority(high, 6);
+	Machine.interrupt().restore(intStatus);
+
+	low[0].fork();
+	low[1].fork();
+	held.P();
+	held.P();
+	high.fork();
+	KThread.yield();
+
+	for (int i=0; i<low.length; i++) {
+	    intStatus = Machine.interrupt().disable();
+	    Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(low[i])
+			   == 6);
+	    Machine.interrupt().restore(intStatus);
+
+	    go[i].V();
+	    low[i].join();
+	}
+	high.join();
+
+	System.out.println("ReadWriteLock Test 3 Passed.");
+    }
+}
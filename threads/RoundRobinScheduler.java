@@ -69,6 +69,17 @@ public class RoundRobinScheduler extends Scheduler {
 	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
+	/**
+	 * Remove a thread from anywhere in the queue.
+	 *
+	 * @return	<tt>true</tt> if the thread was on the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
+	}
+
 	/**
 	 * Print out the contents of the queue.
 	 */
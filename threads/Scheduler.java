@@ -9,9 +9,12 @@ import nachos.machine.*;
  */
 public abstract class Scheduler {
     /**
-     * Allocate a new scheduler.
+     * Allocate a new scheduler. The quantum is read from the
+     * <tt>Scheduler.quantum</tt> configuration key; if it is missing or 0,
+     * threads are never preempted.
      */
     public Scheduler() {
+	quantum = Config.getInteger("Scheduler.quantum", 0);
     }
     
     /**
@@ -52,6 +55,18 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads that are ready to run. <tt>KThread</tt>
+     * calls this once, instead of <tt>newThreadQueue(false)</tt>, so that a
+     * scheduler can treat its ready queue differently from the queues of
+     * locks and semaphores.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +169,114 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Notify this scheduler that the current thread is about to give up the
+     * processor. Called by <tt>KThread</tt> with interrupts disabled, just
+     * before the next thread is chosen from the ready queue. Schedulers that
+     * account for processor usage can charge the outgoing thread here.
+     *
+     * @param	thread	the thread giving up the processor.
+     * @param	blocked	<tt>true</tt> if the thread is going to sleep or has
+     *			finished, <tt>false</tt> if it yielded and is already
+     *			back on the ready queue.
+     */
+    public void threadDescheduled(KThread thread, boolean blocked) {
+    }
+
+    /**
+     * Called by <tt>KThread</tt> with interrupts disabled when a thread
+     * finishes, before it gives up the processor for the last time.
+     * Schedulers that keep per-thread reservations can drop them here.
+     *
+     * @param	thread	the thread that is finishing.
+     */
+    public void threadFinished(KThread thread) {
+    }
+
+    /**
+     * Decide whether the current thread should be preempted. Called by the
+     * timer interrupt handler with interrupts disabled; if this returns
+     * <tt>true</tt>, the current thread yields.
+     *
+     * <p>
+     * By default, a thread is preempted once it has run for its quantum since
+     * it was last dispatched. Since the timer interrupts about every 500
+     * ticks, a quantum is only enforced to that resolution.
+     *
+     * @return	<tt>true</tt> if the current thread should yield the processor.
+     */
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread thread = KThread.currentThread();
+	long quantum = getQuantum(thread);
+
+	return (quantum > 0 &&
+		Machine.timer().getTime() - thread.dispatchTime >= quantum);
+    }
+
+    /**
+     * Return the quantum of this scheduler.
+     *
+     * @return	the number of ticks a thread may run before it is preempted, or
+     *		0 if threads are not preempted.
+     */
+    public int getQuantum() {
+	return quantum;
+    }
+
+    /**
+     * Set the quantum of this scheduler, for threads that do not have their
+     * own.
+     *
+     * @param	quantum	the number of ticks a thread may run before it is
+     *			preempted, or 0 to turn off preemption.
+     */
+    public void setQuantum(int quantum) {
+	Lib.assertTrue(quantum >= 0);
+
+	this.quantum = quantum;
+    }
+
+    /**
+     * Return the number of ticks the specified thread may run after it is
+     * dispatched before it is preempted. This is the thread's own quantum if
+     * it has one, and the quantum of this scheduler otherwise.
+     *
+     * @param	thread	the thread.
+     * @return	the thread's quantum, or 0 if it is not preempted.
+     */
+    public long getQuantum(KThread thread) {
+	return (thread.quantum > 0) ? thread.quantum : quantum;
+    }
+
+    /**
+     * Give the specified thread its own quantum. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread	the thread.
+     * @param	quantum	the number of ticks the thread may run before it is
+     *			preempted, or 0 to use the quantum of this
+     *			scheduler.
+     */
+    public void setQuantum(KThread thread, int quantum) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(quantum >= 0);
+
+	thread.quantum = quantum;
+    }
+
+    /**
+     * Return the histogram of the ticks threads have spent in this scheduler's
+     * ready queue before being dispatched.
+     *
+     * @return	the ready queue wait histogram.
+     */
+    public LatencyHistogram getReadyWaitHistogram() {
+	return readyWait;
+    }
+
+    private int quantum;
+    private LatencyHistogram readyWait = new LatencyHistogram();
 }
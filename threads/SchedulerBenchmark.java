@@ -0,0 +1,406 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how well schedulers handle synthetic thread populations.
+ *
+ * <p>
+ * Four workloads are run under the kernel's scheduler:
+ *
+ * <ul>
+ * <li><tt>cpu</tt>: threads that burn a number of ticks without blocking;
+ * <li><tt>io</tt>: threads that alternate short bursts with
+ *     <tt>Alarm.waitUntil()</tt>;
+ * <li><tt>lock</tt>: threads that repeatedly burn while holding a shared
+ *     <tt>Lock</tt>;
+ * <li><tt>join</tt>: a binary tree of threads, each of which forks and joins
+ *     its children.
+ * </ul>
+ *
+ * <p>
+ * For each workload, the benchmark reports the makespan, the throughput in
+ * threads finished per 1000 ticks, the mean turnaround time, the 50th, 90th
+ * and 99th percentile response times, and Jain's fairness index over the
+ * threads' rates of progress (work divided by turnaround). The response time
+ * of a thread is sampled when it first runs after being forked and, for I/O
+ * threads, every time it runs again after waking from the alarm.
+ *
+ * <p>
+ * Since the ready queue is created once, the workloads can only be run under
+ * the scheduler the kernel was started with; to compare schedulers, run the
+ * benchmark once per <tt>ThreadedKernel.scheduler</tt> setting. The host-side
+ * cost of <tt>nextThread()</tt>, which needs no running threads, is measured
+ * for every scheduler named by <tt>SchedulerBenchmark.schedulers</tt> on
+ * ready queues of unforked threads.
+ *
+ * <p>
+ * Results are printed as CSV rows of the form
+ * <tt>scheduler,quantum,workload,threads,metric,value</tt>, so that runs can
+ * be appended to one file and tracked over time.
+ */
+public class SchedulerBenchmark {
+    /**
+     * Allocate a new benchmark.
+     *
+     * @param	threads	the number of threads in the <tt>cpu</tt>,
+     *			<tt>io</tt> and <tt>lock</tt> workloads. The
+     *			<tt>join</tt> tree has about as many nodes.
+     * @param	work	the number of ticks each <tt>cpu</tt> thread burns.
+     */
+    public SchedulerBenchmark(int threads, int work) {
+	Lib.assertTrue(threads > 0 && work > 0);
+
+	this.threads = threads;
+	this.work = work;
+    }
+
+    /**
+     * Print the CSV header.
+     */
+    public static void printHeader() {
+	System.out.println("scheduler,quantum,workload,threads,metric,value");
+    }
+
+    /**
+     * Run every workload under the kernel's scheduler and print the results.
+     */
+    public void runWorkloads() {
+	runCPU();
+	runIO();
+	runLock();
+	runJoin();
+    }
+
+    /**
+     * Run the <tt>cpu</tt> workload: threads burning between <tt>work</tt>
+     * and <tt>4*work</tt> ticks each.
+     */
+    public void runCPU() {
+	List<Job> roots = new ArrayList<Job>();
+	for (int i=0; i<threads; i++)
+	    roots.add(new CPUJob(work * (i%4 + 1)));
+
+	report("cpu", runJobs(roots));
+    }
+
+    /**
+     * Run the <tt>io</tt> workload: threads doing ten 100 tick bursts, each
+     * followed by a 2000 tick sleep.
+     */
+    public void runIO() {
+	List<Job> roots = new ArrayList<Job>();
+	for (int i=0; i<threads; i++)
+	    roots.add(new IOJob(10, 100, 2000));
+
+	report("io", runJobs(roots));
+    }
+
+    /**
+     * Run the <tt>lock</tt> workload: threads taking a shared lock ten times,
+     * burning 100 ticks inside and 100 ticks outside it.
+     */
+    public void runLock() {
+	Lock lock = new Lock();
+	List<Job> roots = new ArrayList<Job>();
+	for (int i=0; i<threads; i++)
+	    roots.add(new LockJob(lock, 10, 100, 100));
+
+	report("lock", runJobs(roots));
+    }
+
+    /**
+     * Run the <tt>join</tt> workload: a complete binary tree of threads with
+     * about <tt>threads</tt> nodes, each burning 500 ticks before forking its
+     * children.
+     */
+    public void runJoin() {
+	int depth = 1;
+	while ((2 << depth) - 1 <= threads)
+	    depth++;
+
+	List<Job> roots = new ArrayList<Job>();
+	roots.add(new JoinJob(depth, 500));
+	report("join", runJobs(roots));
+    }
+
+    /**
+     * Fork the specified root jobs, wait for them and every job they fork to
+     * finish, and return the elapsed ticks.
+     */
+    private long runJobs(List<Job> roots) {
+	jobs = new ArrayList<Job>();
+	long start = Machine.timer().getTime();
+	hostStart = System.nanoTime();
+
+	KThread[] forked = new KThread[roots.size()];
+	for (int i=0; i<forked.length; i++)
+	    forked[i] = roots.get(i).fork("benchmark #" + i);
+	for (int i=0; i<forked.length; i++)
+	    forked[i].join();
+
+	return Machine.timer().getTime() - start;
+    }
+
+    /**
+     * Print the metrics of a finished workload.
+     */
+    private void report(String workload, long makespan) {
+	long hostNanos = System.nanoTime() - hostStart;
+
+	int n = jobs.size();
+	List<Long> responses = new ArrayList<Long>();
+	double turnaround = 0, sum = 0, sumSquares = 0;
+	for (int i=0; i<n; i++) {
+	    Job job = jobs.get(i);
+	    Lib.assertTrue(job.finishTime >= job.forkTime);
+
+	    long t = job.finishTime - job.forkTime;
+	    turnaround += t;
+	    double rate = (double) job.work / Math.max(t, 1);
+	    sum += rate;
+	    sumSquares += rate*rate;
+
+	    responses.addAll(job.responses);
+	}
+	Collections.sort(responses);
+
+	String prefix = schedulerName(ThreadedKernel.scheduler) + ","
+	    + ThreadedKernel.scheduler.getQuantum() + "," + workload + ","
+	    + n + ",";
+	System.out.println(prefix + "makespan," + makespan);
+	System.out.println(prefix + "throughput,"
+			   + format(n * 1000.0 / Math.max(makespan, 1)));
+	System.out.println(prefix + "turnaround_mean," + format(turnaround / n));
+	System.out.println(prefix + "response_p50,"
+			   + percentile(responses, 50));
+	System.out.println(prefix + "response_p90,"
+			   + percentile(responses, 90));
+	System.out.println(prefix + "response_p99,"
+			   + percentile(responses, 99));
+	System.out.println(prefix + "fairness,"
+			   + format(sum*sum / (n * sumSquares)));
+	System.out.println(prefix + "host_ms," + format(hostNanos / 1e6));
+    }
+
+    private static long percentile(List<Long> sorted, int p) {
+	if (sorted.isEmpty())
+	    return 0;
+
+	int i = (int) Math.ceil(sorted.size() * p / 100.0) - 1;
+	return sorted.get(Math.max(i, 0));
+    }
+
+    private static String format(double value) {
+	return String.valueOf(Math.round(value * 1000) / 1000.0);
+    }
+
+    private static String schedulerName(Scheduler sched) {
+	String name = sched.getClass().getName();
+	return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * Measure the host time taken by <tt>nextThread()</tt> on ready queues of
+     * 10, 100 and 1000 unforked threads of a new scheduler of the specified
+     * class, and print the results.
+     *
+     * @param	className	the name of the scheduler class.
+     * @param	iterations	the number of dispatches to time per size.
+     */
+    public static void measureNextThread(String className, int iterations) {
+	int[] sizes = new int[] { 10, 100, 1000 };
+
+	for (int s=0; s<sizes.length; s++) {
+	    Scheduler sched = (Scheduler) Lib.constructObject(className);
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    ThreadQueue ready = sched.newReadyQueue();
+	    for (int i=0; i<sizes[s]; i++)
+		ready.waitForAccess(new KThread());
+
+	    // warm up the JIT, then time dequeue-and-requeue cycles
+	    for (int i=0; i<iterations/10; i++)
+		ready.waitForAccess(ready.nextThread());
+
+	    long nextNanos = 0;
+	    long start = System.nanoTime();
+	    for (int i=0; i<iterations; i++) {
+		KThread thread = ready.nextThread();
+		long mid = System.nanoTime();
+		nextNanos += mid - start;
+		ready.waitForAccess(thread);
+		start = System.nanoTime();
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+
+	    System.out.println(schedulerName(sched) + ","
+			       + sched.getQuantum() + ",nextThread,"
+			       + sizes[s] + ",ns_per_call,"
+			       + format((double) nextNanos / iterations));
+	}
+    }
+
+    /**
+     * A thread in a workload, with the times used to compute its metrics.
+     */
+    private abstract class Job implements Runnable {
+	Job(long work) {
+	    this.work = work;
+	}
+
+	/**
+	 * Fork a thread to run this job.
+	 */
+	KThread fork(String name) {
+	    jobs.add(this);
+
+	    KThread thread = new KThread(this).setName(name);
+	    forkTime = Machine.timer().getTime();
+	    thread.fork();
+	    return thread;
+	}
+
+	public void run() {
+	    responses.add(Machine.timer().getTime() - forkTime);
+	    body();
+	    finishTime = Machine.timer().getTime();
+	}
+
+	abstract void body();
+
+	/** The ticks of processor time this job asks for. */
+	long work;
+	long forkTime, finishTime;
+	List<Long> responses = new ArrayList<Long>();
+    }
+
+    /**
+     * Burn the specified number of ticks of processor time. Each enable
+     * advances the clock by <tt>Stats.KernelTick</tt> while this thread runs.
+     */
+    private static void burn(long ticks) {
+	for (long i=0; i<ticks; i+=Stats.KernelTick) {
+	    Machine.interrupt().disable();
+	    Machine.interrupt().enable();
+	}
+    }
+
+    private class CPUJob extends Job {
+	CPUJob(long work) {
+	    super(work);
+	}
+
+	void body() {
+	    burn(work);
+	}
+    }
+
+    private class IOJob extends Job {
+	IOJob(int bursts, long burst, long sleep) {
+	    super(bursts * burst);
+	    this.bursts = bursts;
+	    this.burst = burst;
+	    this.sleep = sleep;
+	}
+
+	void body() {
+	    for (int i=0; i<bursts; i++) {
+		burn(burst);
+
+		long wakeTime = Machine.timer().getTime() + sleep;
+		ThreadedKernel.alarm.waitUntil(sleep);
+		responses.add(Machine.timer().getTime() - wakeTime);
+	    }
+	}
+
+	private int bursts;
+	private long burst, sleep;
+    }
+
+    private class LockJob extends Job {
+	LockJob(Lock lock, int iterations, long hold, long think) {
+	    super(iterations * (hold + think));
+	    this.lock = lock;
+	    this.iterations = iterations;
+	    this.hold = hold;
+	    this.think = think;
+	}
+
+	void body() {
+	    for (int i=0; i<iterations; i++) {
+		lock.acquire();
+		burn(hold);
+		lock.release();
+		burn(think);
+	    }
+	}
+
+	private Lock lock;
+	private int iterations;
+	private long hold, think;
+    }
+
+    private class JoinJob extends Job {
+	JoinJob(int depth, long work) {
+	    super(work);
+	    this.depth = depth;
+	}
+
+	void body() {
+	    burn(work);
+	    if (depth == 1)
+		return;
+
+	    JoinJob left = new JoinJob(depth-1, work);
+	    JoinJob right = new JoinJob(depth-1, work);
+
+	    KThread l = left.fork("join depth " + (depth-1));
+	    KThread r = right.fork("join depth " + (depth-1));
+	    l.join();
+	    r.join();
+	}
+
+	private int depth;
+    }
+
+    private int threads, work;
+    /** Every job forked by the workload being run. */
+    private List<Job> jobs;
+    private long hostStart;
+
+    /**
+     * Run the benchmark with the sizes given by the
+     * <tt>SchedulerBenchmark.threads</tt>, <tt>SchedulerBenchmark.work</tt>
+     * and <tt>SchedulerBenchmark.iterations</tt> configuration keys, and check
+     * that every workload finished.
+     */
+    public static void selfTest() {
+	int threads = Config.getInteger("SchedulerBenchmark.threads", 20);
+	int work = Config.getInteger("SchedulerBenchmark.work", 1000);
+	int iterations = Config.getInteger("SchedulerBenchmark.iterations",
+					   100000);
+	String schedulers =
+	    Config.getString("SchedulerBenchmark.schedulers",
+			     "nachos.threads.RoundRobinScheduler,"
+			     + "nachos.threads.PriorityScheduler,"
+			     + "nachos.threads.LotteryScheduler,"
+			     + "nachos.threads.StrideScheduler,"
+			     + "nachos.threads.MLFQScheduler,"
+			     + "nachos.threads.FairShareScheduler,"
+			     + "nachos.threads.EDFScheduler");
+
+	printHeader();
+
+	new SchedulerBenchmark(threads, work).runWorkloads();
+
+	String[] names = schedulers.split(",");
+	for (int i=0; i<names.length; i++)
+	    measureNextThread(names[i].trim(), iterations);
+    }
+}
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashMap;
+
 /**
  * A <tt>Semaphore</tt> is a synchronization primitive with an unsigned value.
  * A semaphore has only two operations:
@@ -14,6 +16,10 @@ import nachos.machine.*;
  * </ul>
  *
  * <p>
+ * <tt>P(n)</tt> and <tt>V(n)</tt> take and return <i>n</i> permits at once,
+ * for pools of resources such as page frames.
+ *
+ * <p>
  * Note that this API does not allow a thread to read the value of the
  * semaphore directly. Even if you did read the value, the only thing you would
  * know is what the value used to be. You don't know what the value is now,
@@ -35,17 +41,54 @@ public class Semaphore {
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
-	boolean intStatus = Machine.interrupt().disable();
+	P(1);
+    }
 
-	if (value == 0) {
-	    waitQueue.waitForAccess(KThread.currentThread());
-	    KThread.sleep();
-	}
-	else {
-	    value--;
-	}
+    /**
+     * Atomically wait for the value of this semaphore to reach <i>n</i> and
+     * subtract <i>n</i> from it.
+     *
+     * <p>
+     * Requests are served in the order the scheduler's wait queue picks them,
+     * and a request that does not fit in the value yet holds its place at the
+     * front of the line: later requests wait behind it even if they are
+     * smaller, so a large request is never starved by a stream of small ones.
+     *
+     * @param	n	the number of permits to take.
+     */
+    public void P(int n) {
+	acquire(n, -1);
+    }
 
-	Machine.interrupt().restore(intStatus);
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * giving up after the specified number of clock ticks. The timeout is only
+     * noticed at a timer interrupt, so it may expire up to about 500 ticks
+     * late.
+     *
+     * @param	ticks	the maximum number of ticks to wait, or 0 to return
+     *			immediately if the semaphore is zero.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the timeout expired first.
+     */
+    public boolean tryP(long ticks) {
+	return tryP(1, ticks);
+    }
+
+    /**
+     * Like <tt>P(n)</tt>, but give up after the specified number of clock
+     * ticks. A request that gives up lets the requests behind it go ahead.
+     *
+     * @param	n	the number of permits to take.
+     * @param	ticks	the maximum number of ticks to wait, or 0 to return
+     *			immediately if the permits are not available.
+     * @return	<tt>true</tt> if the permits were taken, or <tt>false</tt> if
+     *		the timeout expired first.
+     */
+    public boolean tryP(int n, long ticks) {
+	Lib.assertTrue(ticks >= 0);
+
+	return acquire(n, ticks);
     }
 
     /**
@@ -53,17 +96,137 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
+	V(1);
+    }
+
+    /**
+     * Atomically add <i>n</i> to this semaphore, and wake up every thread at
+     * the front of the line whose request now fits, all with interrupts
+     * disabled once.
+     *
+     * @param	n	the number of permits to return.
+     */
+    public void V(int n) {
+	Lib.assertTrue(n > 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
-	    thread.ready();
+	value += n;
+	grant();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Take <i>n</i> permits, waiting at most <i>ticks</i> ticks for them, or
+     * forever if <i>ticks</i> is negative.
+     */
+    private boolean acquire(int n, long ticks) {
+	Lib.assertTrue(n > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean acquired = true;
+	if (waiters.isEmpty() && value >= n) {
+	    value -= n;
+	}
+	else if (ticks == 0) {
+	    acquired = false;
 	}
 	else {
-	    value++;
+	    long start = LockProfiler.enabled ? profiler.blocked(null) : 0;
+	    if (DeadlockDetector.enabled)
+		DeadlockDetector.waitFor(this);
+
+	    final Waiter waiter = new Waiter(KThread.currentThread(), n);
+	    waiters.put(waiter.thread, waiter);
+	    waitQueue.waitForAccess(waiter.thread);
+	    if (ticks > 0) {
+		waiter.timeout = ThreadedKernel.alarm.schedule(ticks,
+							       new Runnable() {
+			public void run() { timedOut(waiter); }
+		    });
+	    }
+
+	    KThread.sleep();
+	    acquired = waiter.granted;
+
+	    if (DeadlockDetector.enabled)
+		DeadlockDetector.woke();
+	    if (LockProfiler.enabled)
+		profiler.woke(start);
 	}
-	
+
+	if (LockProfiler.enabled && acquired)
+	    profiler.acquired();
+
 	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
+    /**
+     * Hand out permits to the waiters at the front of the line until one
+     * does not fit, and keep that one at the front.
+     */
+    private void grant() {
+	while (true) {
+	    if (head == null) {
+		KThread thread = waitQueue.nextThread();
+		if (thread == null)
+		    return;
+		head = waiters.get(thread);
+	    }
+	    if (head.permits > value)
+		return;
+
+	    value -= head.permits;
+	    waiters.remove(head.thread);
+	    head.granted = true;
+	    if (head.timeout != null)
+		head.timeout.cancel();
+	    head.thread.ready();
+	    head = null;
+	}
+    }
+
+    /**
+     * Called from the timer interrupt when a timed wait gives up.
+     */
+    private void timedOut(Waiter waiter) {
+	waiters.remove(waiter.thread);
+	if (head == waiter) {
+	    // the requests behind it may fit
+	    head = null;
+	    grant();
+	}
+	else {
+	    Lib.assertTrue(waitQueue.remove(waiter.thread));
+	}
+	waiter.thread.ready();
+    }
+
+    /**
+     * A thread waiting in <tt>P()</tt> or <tt>tryP()</tt>.
+     */
+    private static class Waiter {
+	Waiter(KThread thread, int permits) {
+	    this.thread = thread;
+	    this.permits = permits;
+	}
+
+	KThread thread;
+	int permits;
+	boolean granted = false;
+	TimingWheel.Timeout timeout = null;
+    }
+
+    /**
+     * Yield until at least <i>count</i> threads are waiting for permits, so
+     * that a test does not depend on the order the scheduler runs threads in.
+     */
+    private void yieldUntilWaiting(int count) {
+	while (waiters.size() < count)
+	    KThread.yield();
     }
 
     private static class PingTest implements Runnable {
@@ -96,9 +259,103 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// a timed out wait must not swallow a later V()
+	final Semaphore timed = new Semaphore(0);
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(!timed.tryP(0));
+	Lib.assertTrue(!timed.tryP(1000));
+	Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+	timed.V();
+	Lib.assertTrue(timed.tryP(0));
+
+	// a V() before the timeout wins, and cancels the timeout
+	KThread waker = new KThread(new Runnable() {
+		public void run() {
+		    timed.V();
+		}
+	    }).setName("waker");
+	waker.fork();
+	Lib.assertTrue(timed.tryP(100000));
+	waker.join();
+	ThreadedKernel.alarm.waitUntil(1000);
+	Lib.assertTrue(!timed.tryP(0));
+
+	// a large request holds its place against later small ones
+	final Semaphore pool = new Semaphore(0);
+	final int[] done = new int[2];
+	KThread large = new KThread(new Runnable() {
+		public void run() {
+		    pool.P(3);
+		    done[0]++;
+		}
+	    }).setName("large");
+	large.fork();
+	pool.yieldUntilWaiting(1);
+	pool.V(1);
+	KThread small = new KThread(new Runnable() {
+		public void run() {
+		    pool.P(1);
+		    done[1]++;
+		}
+	    }).setName("small");
+	small.fork();
+	pool.yieldUntilWaiting(2);
+	pool.V(1);
+	Lib.assertTrue(done[0] == 0 && done[1] == 0);
+	Lib.assertTrue(!pool.tryP(1, 0));
+	pool.V(1);
+	large.join();
+	Lib.assertTrue(done[0] == 1 && done[1] == 0);
+	pool.V(1);
+	small.join();
+
+	// one V(n) wakes every waiter it can satisfy
+	KThread[] waiters = new KThread[5];
+	for (int i=0; i<waiters.length; i++) {
+	    waiters[i] = new KThread(new Runnable() {
+		    public void run() {
+			pool.P(2);
+		    }
+		}).setName("waiter " + i);
+	    waiters[i].fork();
+	}
+	pool.yieldUntilWaiting(waiters.length);
+	pool.V(2*waiters.length + 1);
+	for (int i=0; i<waiters.length; i++)
+	    waiters[i].join();
+	Lib.assertTrue(pool.tryP(1, 0) && !pool.tryP(1, 0));
+
+	// a large request that times out lets the one behind it through
+	KThread timedLarge = new KThread(new Runnable() {
+		public void run() {
+		    Lib.assertTrue(!pool.tryP(3, 1000));
+		}
+	    }).setName("timed large");
+	timedLarge.fork();
+	pool.yieldUntilWaiting(1);
+	pool.V(1);
+	small = new KThread(new Runnable() {
+		public void run() {
+		    pool.P(1);
+		}
+	    }).setName("small");
+	small.fork();
+	small.join();
+	timedLarge.join();
+	Lib.assertTrue(!pool.tryP(1, 0));
     }
 
     private int value;
+    /** Every thread waiting for permits, including <tt>head</tt>. */
+    private HashMap<KThread,Waiter> waiters = new HashMap<KThread,Waiter>();
+    /**
+     * The waiter taken off the wait queue whose request did not fit, or
+     * <tt>null</tt>.
+     */
+    private Waiter head = null;
+    private LockProfiler profiler =
+	LockProfiler.enabled ? new LockProfiler("Semaphore") : null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,321 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that gives threads deterministic proportional shares using
+ * stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and tickets are transferred through locks and joins by
+ * adding them to the tickets of the owning thread. Instead of holding a
+ * lottery, every thread has a <i>stride</i> inversely proportional to its
+ * effective tickets, and a <i>pass</i> value. The next thread to be dequeued
+ * is always the waiting thread with the smallest pass, and its pass is then
+ * advanced by its stride. Threads with the same pass are dequeued in the order
+ * in which they began waiting.
+ *
+ * <p>
+ * Over any interval, the number of times a thread is chosen differs from its
+ * exact proportional share by at most one, rather than by the
+ * <i>O(sqrt n)</i> error of a lottery.
+ */
+public class StrideScheduler extends LotteryScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * Return the stride of a thread holding the specified number of
+     * effective tickets.
+     *
+     * @param	tickets	the effective tickets of the thread.
+     * @return	the stride of the thread.
+     */
+    protected static long stride(long tickets) {
+	return Math.max(stride1 / tickets, 1);
+    }
+
+    /**
+     * The stride of a thread holding exactly one ticket. Every stride is
+     * this value divided by the thread's effective tickets.
+     */
+    public static final long stride1 = 1 << 20;
+
+    /**
+     * A <tt>TicketQueue</tt> that keeps its waiting threads in a binary heap
+     * ordered by pass.
+     *
+     * <p>
+     * The queue has a global pass, which is the pass of the thread most
+     * recently dequeued. A thread that begins waiting is placed one stride
+     * past the global pass, so a thread that has been away from the queue
+     * neither loses its turn nor accumulates credit while it was gone.
+     */
+    protected class StrideQueue extends TicketQueue {
+	StrideQueue(boolean transferPriority) {
+	    super(transferPriority);
+	    heap = new StrideState[initialCapacity];
+	    globalPass = 0;
+	    numAdded = 0;
+	}
+
+	protected LotteryState pickNextThread() {
+	    if (size() == 0)
+		return null;
+
+	    return heap[0];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    System.out.println("Current stride queue (global pass "
+			       + globalPass + "): ");
+	    for (int i=0; i<size(); i++) {
+		System.out.println(heap[i].thread + " Tickets: "
+				   + heap[i].getTickets()
+				   + ", Effective Tickets: "
+				   + heap[i].getEffectiveTickets()
+				   + ", Pass: " + heap[i].pass + ".");
+	    }
+	}
+
+	/**
+	 * Put a newly waiting thread one stride past the global pass. The
+	 * base class has already counted it in <tt>size()</tt>.
+	 */
+	protected void insert(LotteryState ts) {
+	    StrideState ss = (StrideState) ts;
+	    int n = size() - 1;
+
+	    if (n == heap.length) {
+		StrideState[] newHeap = new StrideState[heap.length*2];
+		System.arraycopy(heap, 0, newHeap, 0, heap.length);
+		heap = newHeap;
+	    }
+
+	    ss.pass = globalPass + stride(ss.effectiveTickets);
+	    ss.sequence = numAdded++;
+	    heap[n] = ss;
+	    ss.slot = n;
+	    siftUp(n);
+	}
+
+	/**
+	 * Remove a thread from the heap. The base class has not yet dropped it
+	 * from <tt>size()</tt>.
+	 */
+	protected void delete(LotteryState ts) {
+	    int i = ts.slot;
+	    int last = size() - 1;
+
+	    heap[i] = heap[last];
+	    heap[i].slot = i;
+	    heap[last] = null;
+	    ts.slot = 0;
+
+	    if (i != last) {
+		siftUp(i);
+		siftDown(i, last);
+	    }
+	}
+
+	/**
+	 * Rescale the remaining distance of a thread to the global pass by
+	 * the ratio of its new stride to its old one.
+	 */
+	protected void change(LotteryState ts, long delta) {
+	    StrideState ss = (StrideState) ts;
+	    long oldStride = stride(ss.effectiveTickets - delta);
+	    long newStride = stride(ss.effectiveTickets);
+
+	    ss.pass = globalPass + (ss.pass - globalPass) * newStride / oldStride;
+
+	    siftUp(ss.slot);
+	    siftDown(ss.slot, size());
+	}
+
+	protected void dispatched(LotteryState ts) {
+	    globalPass = ((StrideState) ts).pass;
+	}
+
+	private void siftUp(int i) {
+	    StrideState ss = heap[i];
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!before(ss, heap[parent]))
+		    break;
+		heap[i] = heap[parent];
+		heap[i].slot = i;
+		i = parent;
+	    }
+	    heap[i] = ss;
+	    ss.slot = i;
+	}
+
+	private void siftDown(int i, int n) {
+	    StrideState ss = heap[i];
+	    while (2*i+1 < n) {
+		int child = 2*i+1;
+		if (child+1 < n && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], ss))
+		    break;
+		heap[i] = heap[child];
+		heap[i].slot = i;
+		i = child;
+	    }
+	    heap[i] = ss;
+	    ss.slot = i;
+	}
+
+	private boolean before(StrideState a, StrideState b) {
+	    if (a.pass != b.pass)
+		return a.pass < b.pass;
+	    return a.sequence < b.sequence;
+	}
+
+	private StrideState[] heap;
+	private long globalPass;
+	private long numAdded;
+
+	private static final int initialCapacity = 8;
+    }
+
+    /**
+     * The scheduling state of a thread under a stride scheduler. In addition
+     * to its tickets, a thread has a pass in the queue it is waiting on.
+     */
+    protected class StrideState extends LotteryState {
+	/**
+	 * Allocate a new <tt>StrideState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideState(KThread thread) {
+	    super(thread);
+	}
+
+	/** The pass of the associated thread in <tt>waitingQueue</tt>. */
+	protected long pass = 0;
+	/** Breaks ties between threads with the same pass, FIFO. */
+	protected long sequence = 0;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	System.out.println("Stride Scheduling Test 1 (ticket transfer):");
+
+	StrideScheduler sched = new StrideScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	// a holds the lock that b waits on; a and c compete for the CPU
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	sched.setPriority(a, 1);
+	sched.setPriority(b, 3);
+	sched.setPriority(c, 4);
+
+	ThreadQueue lock = sched.newThreadQueue(true);
+	lock.acquire(a);
+	lock.waitForAccess(b);
+	Lib.assertTrue(sched.getEffectivePriority(a) == 4);
+
+	ThreadQueue ready = sched.newThreadQueue(false);
+	ready.waitForAccess(a);
+	ready.waitForAccess(c);
+	int aRuns = 0;
+	for (int i=0; i<800; i++) {
+	    KThread thread = ready.nextThread();
+	    if (thread == a)
+		aRuns++;
+	    ready.waitForAccess(thread);
+	}
+	Lib.assertTrue(aRuns == 400);
+
+	Lib.assertTrue(lock.nextThread() == b);
+	Lib.assertTrue(sched.getEffectivePriority(a) == 1);
+
+	Machine.interrupt().restore(intStatus);
+	System.out.println("Stride Scheduling Test 1 Passed.\n");
+
+	System.out.println("Stride Scheduling Test 2 (CPU share error, "
+			   + "stride vs. lottery):");
+	int[] dispatches = new int[] { 550, 5500, 55000 };
+	for (int i=0; i<dispatches.length; i++) {
+	    double strideError = shareError(new StrideScheduler(),
+					    dispatches[i]);
+	    double lotteryError = shareError(new LotteryScheduler(),
+					     dispatches[i]);
+
+	    System.out.println(dispatches[i] + " dispatches: "
+			       + "stride max error "
+			       + (int) (strideError*1000)/10.0 + "%, "
+			       + "lottery max error "
+			       + (int) (lotteryError*1000)/10.0 + "%");
+	    Lib.assertTrue(strideError < lotteryError);
+	}
+	System.out.println("Stride Scheduling Test 2 Passed.\n");
+    }
+
+    /**
+     * Dispatch ten threads holding 1 through 10 tickets from a ready queue of
+     * the specified scheduler, and return the largest relative difference
+     * between a thread's share of dispatches and its share of tickets.
+     */
+    private static double shareError(LotteryScheduler sched, int dispatches) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue ready = sched.newThreadQueue(false);
+	KThread[] threads = new KThread[10];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread();
+	    sched.setPriority(threads[i], i+1);
+	    ready.waitForAccess(threads[i]);
+	}
+
+	int[] runs = new int[threads.length+1];
+	for (int i=0; i<dispatches; i++) {
+	    KThread thread = ready.nextThread();
+	    runs[sched.getPriority(thread)]++;
+	    ready.waitForAccess(thread);
+	}
+
+	double maxError = 0;
+	for (int tickets=1; tickets<=threads.length; tickets++) {
+	    double expected = (double) dispatches * tickets / 55;
+	    maxError = Math.max(maxError,
+				Math.abs(runs[tickets] - expected) / expected);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return maxError;
+    }
+}
@@ -1,37 +1,93 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
  * A synchronized queue.
+ *
+ * <p>
+ * The queue is a ring buffer, so adding an object does not allocate a node.
+ * An unbounded queue doubles its buffer when it fills up. A bounded queue
+ * applies back-pressure instead: <tt>add()</tt> blocks until there is room,
+ * and <tt>tryAdd()</tt> fails.
  */
 public class SynchList {
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new synchronized queue with no limit on its size.
      */
     public SynchList() {
-	list = new LinkedList<Object>();
+	this(initialSize, false);
+    }
+
+    /**
+     * Allocate a new synchronized queue that holds at most <i>capacity</i>
+     * objects.
+     *
+     * @param	capacity	the largest number of objects in the queue.
+     */
+    public SynchList(int capacity) {
+	this(capacity, true);
+    }
+
+    private SynchList(int size, boolean bounded) {
+	Lib.assertTrue(size > 0);
+
+	items = new Object[size];
+	this.bounded = bounded;
 	lock = new Lock();
 	listEmpty = new Condition(lock);
+	listFull = new Condition(lock);
     }
 
     /**
      * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * waiting in <tt>removeFirst()</tt>, it is woken up. If the queue is
+     * bounded, blocks until there is room for the object.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
      */
     public void add(Object o) {
 	Lib.assertTrue(o != null);
-	
+
 	lock.acquire();
-	list.add(o);
+	if (isFull()) {
+	    long start = LockProfiler.enabled ? profiler.blocked(null) : 0;
+	    while (isFull())
+		listFull.sleep();
+	    if (LockProfiler.enabled)
+		profiler.woke(start);
+	}
+	enqueue(o);
 	listEmpty.wake();
 	lock.release();
     }
 
+    /**
+     * Add the specified object to the end of the queue, unless the queue is
+     * bounded and full. If another thread is waiting in
+     * <tt>removeFirst()</tt>, it is woken up.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, or <tt>false</tt> if
+     *		the queue was full.
+     */
+    public boolean tryAdd(Object o) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	boolean added = !isFull();
+	if (added) {
+	    enqueue(o);
+	    listEmpty.wake();
+	}
+	lock.release();
+
+	return added;
+    }
+
     /**
      * Remove an object from the front of the queue, blocking until the queue
      * is non-empty if necessary.
@@ -42,20 +98,95 @@ public class SynchList {
 	Object o;
 
 	lock.acquire();
-	while (list.isEmpty())
-	    listEmpty.sleep();
-	o = list.removeFirst();
+	if (count == 0) {
+	    long start = LockProfiler.enabled ? profiler.blocked(null) : 0;
+	    while (count == 0)
+		listEmpty.sleep();
+	    if (LockProfiler.enabled)
+		profiler.woke(start);
+	}
+	o = dequeue();
+	if (LockProfiler.enabled)
+	    profiler.acquired();
+	if (bounded)
+	    listFull.wake();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue, if there is one.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was empty.
+     */
+    public Object poll() {
+	Object o = null;
+
+	lock.acquire();
+	if (count > 0) {
+	    o = dequeue();
+	    if (bounded)
+		listFull.wake();
+	}
 	lock.release();
 
 	return o;
     }
 
+    /**
+     * Move up to <i>max</i> objects from the front of the queue to the end of
+     * a collection, in order, without blocking. Takes the lock once for the
+     * whole batch.
+     *
+     * @param	c	the collection to add the objects to.
+     * @param	max	the largest number of objects to move.
+     * @return	the number of objects moved.
+     */
+    public int drainTo(Collection<Object> c, int max) {
+	lock.acquire();
+	int n = Math.min(max, count);
+	for (int i=0; i<n; i++)
+	    c.add(dequeue());
+	if (bounded && n > 0)
+	    listFull.wakeAll();
+	lock.release();
+
+	return n;
+    }
+
+    private boolean isFull() {
+	return bounded && count == items.length;
+    }
+
+    private void enqueue(Object o) {
+	if (count == items.length) {
+	    Object[] grown = new Object[items.length*2];
+	    for (int i=0; i<count; i++)
+		grown[i] = items[(head + i) % items.length];
+	    items = grown;
+	    head = 0;
+	}
+
+	items[(head + count) % items.length] = o;
+	count++;
+    }
+
+    private Object dequeue() {
+	Object o = items[head];
+	items[head] = null;
+	head = (head + 1) % items.length;
+	count--;
+	return o;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
 	    this.pong = pong;
 	}
-	
+
 	public void run() {
 	    for (int i=0; i<10; i++)
 		pong.add(ping.removeFirst());
@@ -79,10 +210,56 @@ public class SynchList {
 	    ping.add(o);
 	    Lib.assertTrue(pong.removeFirst() == o);
 	}
+
+	// an unbounded queue grows past its initial buffer
+	for (int i=0; i<3*initialSize; i++)
+	    ping.add(new Integer(i));
+	for (int i=0; i<3*initialSize; i++)
+	    Lib.assertTrue(((Integer) ping.removeFirst()).intValue() == i);
+	Lib.assertTrue(ping.poll() == null);
+
+	// a bounded queue pushes back on a producer that gets ahead
+	final SynchList bounded = new SynchList(4);
+	final int[] added = new int[1];
+	KThread producer = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<20; i++) {
+			bounded.add(new Integer(i));
+			added[0]++;
+		    }
+		}
+	    }).setName("producer");
+	producer.fork();
+	for (int i=0; i<10; i++)
+	    KThread.yield();
+	Lib.assertTrue(added[0] == 4);
+	Lib.assertTrue(!bounded.tryAdd(new Integer(-1)));
+
+	ArrayList<Object> drained = new ArrayList<Object>();
+	int next = 0;
+	while (next < 20) {
+	    if (bounded.drainTo(drained, 3) == 0) {
+		KThread.yield();
+		continue;
+	    }
+	    for (int i=0; i<drained.size(); i++)
+		Lib.assertTrue(((Integer) drained.get(i)).intValue() == next++);
+	    drained.clear();
+	}
+	producer.join();
+	Lib.assertTrue(bounded.tryAdd(new Integer(20)));
+	Lib.assertTrue(((Integer) bounded.poll()).intValue() == 20);
+	Lib.assertTrue(bounded.poll() == null);
     }
 
-    private LinkedList<Object> list;
+    private static final int initialSize = 16;
+
+    private Object[] items;
+    private int head = 0, count = 0;
+    private boolean bounded;
     private Lock lock;
     private Condition listEmpty;
+    private Condition listFull;
+    private LockProfiler profiler =
+	LockProfiler.enabled ? new LockProfiler("SynchList") : null;
 }
-
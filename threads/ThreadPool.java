@@ -0,0 +1,233 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed set of worker threads that run submitted tasks and report their
+ * results through <tt>KFuture</tt>s.
+ *
+ * <p>
+ * Forking a <tt>KThread</tt> creates a new <tt>TCB</tt>, and with it a new
+ * host thread, so a short task spends most of its time being created and
+ * destroyed. A pool creates its workers once; each task after that costs only
+ * a queue insertion and, if a worker is idle, a wakeup. The workers are those
+ * of a private <tt>WorkQueue</tt> that takes one task at a time, so a task
+ * that blocks holds up only its own worker.
+ *
+ * <p>
+ * Tasks are taken in the order they were submitted. A worker runs each task at
+ * the priority of the thread that submitted it, or at the priority given to
+ * <tt>submit()</tt>, so a low priority task does not run ahead of the
+ * submitter's other work just because a worker happened to be free.
+ */
+public class ThreadPool {
+    /**
+     * Allocate a new pool and fork its workers.
+     *
+     * @param	name	the name of the pool, used to name the workers.
+     * @param	workers	the number of worker threads.
+     */
+    public ThreadPool(String name, int workers) {
+	workQueue = new WorkQueue(name, workers, 0, 1);
+    }
+
+    /**
+     * A unit of work that produces a result.
+     *
+     * @param	<T>	the type of the result.
+     */
+    public interface Task<T> {
+	/**
+	 * Do the work, on one of the pool's workers.
+	 *
+	 * @return	the result, with which the task's future completes.
+	 */
+	public T call();
+    }
+
+    /**
+     * Submit a task to run at the priority of the current thread. Must be
+     * called from a thread, not from an interrupt handler.
+     *
+     * @param	task	the task to run.
+     * @return	a future that completes with the result of the task.
+     */
+    public <T> KFuture<T> submit(Task<T> task) {
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = ThreadedKernel.scheduler.getPriority();
+	Machine.interrupt().restore(intStatus);
+
+	return submit(task, priority);
+    }
+
+    /**
+     * Submit a task to run at the specified priority. May be called from an
+     * interrupt handler.
+     *
+     * @param	task	the task to run.
+     * @param	priority	the priority the worker runs the task at, which
+     *				must be valid for the current scheduler.
+     * @return	a future that completes with the result of the task.
+     */
+    public <T> KFuture<T> submit(Task<T> task, int priority) {
+	Lib.assertTrue(task != null);
+
+	Job<T> job = new Job<T>(task, priority);
+	workQueue.queue(job);
+	return job.future;
+    }
+
+    /**
+     * Submit a task with no result to run at the priority of the current
+     * thread. Must be called from a thread, not from an interrupt handler.
+     *
+     * @param	task	the task to run.
+     * @return	a future that completes with <tt>null</tt> once the task has
+     *		run.
+     */
+    public KFuture<Object> submit(final Runnable task) {
+	return submit(new Task<Object>() {
+		public Object call() {
+		    task.run();
+		    return null;
+		}
+	    });
+    }
+
+    /**
+     * Submit every one of the specified tasks, and wait for all of them to
+     * finish. The current thread sleeps at most once for each task.
+     *
+     * @param	tasks	the tasks to run.
+     * @return	their results, in the same order as the tasks.
+     */
+    public <T> List<T> invokeAll(List<? extends Task<T>> tasks) {
+	ArrayList<KFuture<T>> futures = new ArrayList<KFuture<T>>(tasks.size());
+	for (Task<T> task : tasks)
+	    futures.add(submit(task));
+
+	ArrayList<T> results = new ArrayList<T>(tasks.size());
+	for (KFuture<T> future : futures)
+	    results.add(future.get());
+
+	return results;
+    }
+
+    /**
+     * Stop accepting tasks, and wait until the workers have run the ones
+     * already submitted and finished.
+     */
+    public void shutdown() {
+	workQueue.shutdown();
+    }
+
+    /**
+     * Return the number of tasks the workers have finished.
+     *
+     * @return	the number of completed tasks.
+     */
+    public long getCompleted() {
+	return completed;
+    }
+
+    /**
+     * A submitted task, queued on the work queue. The worker that takes it
+     * adopts its priority before running it.
+     */
+    private class Job<T> implements Runnable {
+	Job(Task<T> task, int priority) {
+	    this.task = task;
+	    this.priority = priority;
+	}
+
+	public void run() {
+	    boolean intStatus = Machine.interrupt().disable();
+	    ThreadedKernel.scheduler.setPriority(priority);
+	    Machine.interrupt().restore(intStatus);
+
+	    T result = task.call();
+	    // count it before a thread waiting for the result can look
+	    completed++;
+	    future.complete(result);
+	}
+
+	Task<T> task;
+	int priority;
+	KFuture<T> future = new KFuture<T>();
+    }
+
+    private WorkQueue workQueue;
+    private long completed = 0;
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final ThreadPool pool = new ThreadPool("test", 2);
+	final boolean[] inWorker = new boolean[] { true };
+
+	// many short tasks share the two workers
+	ArrayList<Task<Integer>> tasks = new ArrayList<Task<Integer>>();
+	for (int i=0; i<20; i++) {
+	    final int n = i;
+	    tasks.add(new Task<Integer>() {
+		    public Integer call() {
+			inWorker[0] &= KThread.currentThread().getName()
+			    .startsWith("test worker");
+			KThread.yield();
+			return n * n;
+		    }
+		});
+	}
+
+	List<Integer> results = pool.invokeAll(tasks);
+	for (int i=0; i<20; i++)
+	    Lib.assertTrue(results.get(i) == i * i);
+	Lib.assertTrue(inWorker[0] && pool.getCompleted() == 20);
+
+	// a task may block on a lock held by the submitter
+	final Lock lock = new Lock();
+	final int[] ran = new int[1];
+	lock.acquire();
+	KFuture<Object> blocked = pool.submit(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    ran[0]++;
+		    lock.release();
+		}
+	    });
+	KThread.yield();
+	Lib.assertTrue(!blocked.isDone());
+	lock.release();
+	blocked.get();
+	Lib.assertTrue(ran[0] == 1);
+
+	// a worker adopts the priority of each task
+	long submitted = 21;
+	if (ThreadedKernel.scheduler instanceof PriorityScheduler) {
+	    Task<Integer> getPriority = new Task<Integer>() {
+		public Integer call() {
+		    boolean intStatus = Machine.interrupt().disable();
+		    int priority = ThreadedKernel.scheduler.getPriority();
+		    Machine.interrupt().restore(intStatus);
+		    return priority;
+		}
+	    };
+	    Lib.assertTrue(pool.submit(getPriority, 2).get() == 2);
+	    Lib.assertTrue(pool.submit(getPriority, 5).get() == 5);
+	    submitted += 2;
+	}
+
+	// shutdown runs what was already submitted
+	for (int i=0; i<5; i++) {
+	    pool.submit(new Runnable() {
+		    public void run() { ran[0]++; }
+		});
+	}
+	pool.shutdown();
+	Lib.assertTrue(ran[0] == 6 && pool.getCompleted() == submitted + 5);
+    }
+}
@@ -91,6 +91,17 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Take the specified thread off this queue without giving it access, for
+     * example because it stopped waiting when a timeout expired. If this
+     * queue transfers priority, the thread stops donating priority to the
+     * thread that has access.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting on this queue.
+     */
+    public abstract boolean remove(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -53,6 +53,25 @@ public class ThreadedKernel extends Kernel {
 		Condition2.selfTest();
 		Communicator.selfTest();
 		PriorityScheduler.selfTest();
+		LotteryScheduler.selfTest();
+		StrideScheduler.selfTest();
+		MLFQScheduler.selfTest();
+		FairShareScheduler.selfTest();
+		EDFScheduler.selfTest();
+		SchedulerBenchmark.selfTest();
+		AdaptiveLock.selfTest();
+		ReadWriteLock.selfTest();
+		LockProfiler.selfTest();
+		DeadlockDetector.selfTest();
+		TimingWheel.selfTest();
+		Channel.selfTest();
+		CountDownLatch.selfTest();
+		CyclicBarrier.selfTest();
+		Phaser.selfTest();
+		WorkQueue.selfTest();
+		KFuture.selfTest();
+		ThreadPool.selfTest();
+		CeilingLock.selfTest();
         Boat.selfTest();
 		if (Machine.bank() != null) {
 		    ElevatorBank.selfTest();
@@ -68,9 +87,15 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. If the <tt>ThreadedKernel.printAccounting</tt>
+     * configuration key is set, prints the scheduling accounting of the
+     * threads, and if <tt>LockProfiler.enabled</tt> is set, the lock profile,
+     * before the machine prints its statistics. Never returns.
      */
     public void terminate() {
+    	if (Config.getBoolean("ThreadedKernel.printAccounting", false))
+    	    KThread.printAccounting();
+    	LockProfiler.print();
     	Machine.halt();
     }
 
@@ -89,4 +114,21 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static FairShareScheduler dummy10 = null;
+    private static EDFScheduler dummy11 = null;
+    private static AdaptiveLock dummy12 = null;
+    private static ReadWriteLock dummy13 = null;
+    private static LockProfiler dummy14 = null;
+    private static DeadlockDetector dummy15 = null;
+    private static TimingWheel dummy16 = null;
+    private static Channel dummy17 = null;
+    private static CountDownLatch dummy18 = null;
+    private static CyclicBarrier dummy19 = null;
+    private static Phaser dummy20 = null;
+    private static WorkQueue dummy21 = null;
+    private static KFuture<?> dummy22 = null;
+    private static ThreadPool dummy23 = null;
+    private static CeilingLock dummy24 = null;
 }
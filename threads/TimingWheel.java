@@ -0,0 +1,425 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Random;
+
+/**
+ * A hierarchical timing wheel: a set of timeouts, each of which runs a
+ * callback once the clock passes its expiration time.
+ *
+ * <p>
+ * The wheel has <tt>levels</tt> levels of 64 slots each. A slot at level
+ * <i>k</i> spans 64<sup><i>k</i></sup> ticks, so level <i>k</i> holds the
+ * timeouts that expire between 64<sup><i>k</i></sup> and
+ * 64<sup><i>k</i>+1</sup> ticks ahead of the wheel. Each slot is a doubly
+ * linked list, so scheduling and canceling a timeout take constant time. As
+ * the wheel turns past the start of a slot at a higher level, the timeouts in
+ * it are cascaded down to the lower levels; each timeout is cascaded at most
+ * once per level.
+ *
+ * <p>
+ * Every level keeps a bitmap of its non-empty slots, so <tt>advance()</tt>
+ * jumps straight to the next slot that holds a timeout, or to the next
+ * cascade, instead of stepping through every tick since it was last called.
+ * Its cost depends on the number of timeouts that expire or cascade, not on
+ * the number that are pending.
+ *
+ * <p>
+ * A timing wheel is not synchronized; <tt>Alarm</tt> only uses it with
+ * interrupts disabled.
+ */
+public class TimingWheel {
+    /**
+     * Allocate a new, empty timing wheel.
+     *
+     * @param	time	the current time. Timeouts that expire at or before
+     *			this time run at the next call to <tt>advance()</tt>.
+     */
+    public TimingWheel(long time) {
+	moveTo(time);
+    }
+
+    /**
+     * A pending callback, returned by <tt>schedule()</tt>.
+     */
+    public class Timeout {
+	private Timeout(long time, Runnable callback) {
+	    this.time = time;
+	    this.callback = callback;
+	}
+
+	/**
+	 * Cancel this timeout, so that its callback never runs.
+	 *
+	 * @return	<tt>true</tt> if this timeout was pending, or
+	 *		<tt>false</tt> if it had already run or been canceled.
+	 */
+	public boolean cancel() {
+	    if (slot == expiring) {
+		slot = -1;
+		return true;
+	    }
+	    if (slot < 0)
+		return false;
+
+	    unlink(this);
+	    return true;
+	}
+
+	/**
+	 * Test whether this timeout has yet to run or be canceled.
+	 *
+	 * @return	<tt>true</tt> if this timeout is pending.
+	 */
+	public boolean isPending() {
+	    return (slot != -1);
+	}
+
+	/**
+	 * Return the time at which this timeout expires.
+	 *
+	 * @return	the expiration time.
+	 */
+	public long getTime() {
+	    return time;
+	}
+
+	private long time;
+	private Runnable callback;
+	/**
+	 * The index of the slot this timeout is in, <tt>expiring</tt> if it
+	 * is about to run, or -1 if it has run or been canceled.
+	 */
+	private int slot = -1;
+	private Timeout prev, next;
+    }
+
+    /**
+     * Schedule a callback to run during the first call to <tt>advance()</tt>
+     * whose time is at or after the specified time. A timeout that is already
+     * due runs during the next call whose time is after that of the last call.
+     *
+     * @param	time	the time at which the callback should run.
+     * @param	callback	the callback.
+     * @return	a timeout that can be used to cancel the callback.
+     */
+    public Timeout schedule(long time, Runnable callback) {
+	Lib.assertTrue(callback != null);
+
+	Timeout timeout = new Timeout(time, callback);
+	insert(timeout);
+	return timeout;
+    }
+
+    /**
+     * Run the callbacks of every timeout that expires at or before the
+     * specified time, in order of expiration time. A callback may schedule or
+     * cancel timeouts.
+     *
+     * @param	time	the current time.
+     */
+    public void advance(long time) {
+	while (current <= time) {
+	    // skip straight to the next slot that has something in it
+	    int level = 0;
+	    long next = Long.MAX_VALUE;
+	    for (int i=0; i<levels; i++) {
+		long start = slotStart(i);
+		if (start < next) {
+		    next = start;
+		    level = i;
+		}
+	    }
+
+	    if (next > time) {
+		moveTo(time + 1);
+		break;
+	    }
+
+	    // cascade first, in case a higher level slot starts at the same time
+	    moveTo(next);
+	    if (level == 0) {
+		current = next + 1;
+		expire((int) (next & slotMask));
+		moveTo(current);
+	    }
+	}
+    }
+
+    /**
+     * Return the time of the earliest pending timeout. Only the first
+     * non-empty slot of each level is examined, and only if that slot comes
+     * up before the earliest timeout found so far.
+     *
+     * @return	the earliest expiration time, or <tt>Long.MAX_VALUE</tt> if
+     *		no timeout is pending.
+     */
+    public long nextExpiry() {
+	long earliest = Long.MAX_VALUE;
+
+	for (int level=0; level<levels; level++) {
+	    long start = slotStart(level);
+	    if (start >= earliest)
+		continue;
+
+	    int slot = (int) ((start >>> (level*slotBits)) & slotMask);
+	    for (Timeout t=heads[level*slots + slot]; t!=null; t=t.next)
+		earliest = Math.min(earliest, t.time);
+	}
+
+	return earliest;
+    }
+
+    /**
+     * Return the time the wheel reaches the first non-empty slot of a level.
+     *
+     * @return	the start of the slot, or <tt>Long.MAX_VALUE</tt> if the level
+     *		is empty.
+     */
+    private long slotStart(int level) {
+	if (bitmaps[level] == 0)
+	    return Long.MAX_VALUE;
+
+	int shift = level*slotBits;
+	int index = (int) ((current >>> shift) & slotMask);
+
+	if (level == 0) {
+	    return current + Long.numberOfTrailingZeros(
+		Long.rotateRight(bitmaps[level], index));
+	}
+
+	// the current slot of a higher level was emptied when it came up, so
+	// anything in it now is a whole turn ahead; search from the next slot
+	int ahead = 1 + Long.numberOfTrailingZeros(
+	    Long.rotateRight(bitmaps[level], index + 1));
+
+	// only the top level can come up past the largest time
+	long block = (current >>> shift) + ahead;
+	return (block < 1L << (63 - shift)) ? block << shift : Long.MAX_VALUE;
+    }
+
+    /**
+     * Return the number of pending timeouts.
+     *
+     * @return	the number of timeouts that have not run or been canceled.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Put a timeout in the slot it belongs in, relative to the current time
+     * of the wheel.
+     */
+    private void insert(Timeout timeout) {
+	long delta = timeout.time - current;
+
+	int level;
+	long position;
+	if (delta < slots) {
+	    // expired timeouts go in the slot that is visited next
+	    level = 0;
+	    position = Math.max(timeout.time, current);
+	}
+	else {
+	    level = (63 - Long.numberOfLeadingZeros(delta)) / slotBits;
+	    position = timeout.time;
+	}
+	int slot = (int) ((position >>> (level*slotBits)) & slotMask);
+	int index = level*slots + slot;
+
+	timeout.slot = index;
+	timeout.next = null;
+	timeout.prev = tails[index];
+	if (tails[index] != null)
+	    tails[index].next = timeout;
+	else
+	    heads[index] = timeout;
+	tails[index] = timeout;
+
+	bitmaps[level] |= 1L << slot;
+	size++;
+    }
+
+    private void unlink(Timeout timeout) {
+	int index = timeout.slot;
+
+	if (timeout.prev != null)
+	    timeout.prev.next = timeout.next;
+	else
+	    heads[index] = timeout.next;
+	if (timeout.next != null)
+	    timeout.next.prev = timeout.prev;
+	else
+	    tails[index] = timeout.prev;
+
+	if (heads[index] == null)
+	    bitmaps[index / slots] &= ~(1L << (index % slots));
+
+	timeout.slot = -1;
+	timeout.prev = timeout.next = null;
+	size--;
+    }
+
+    /**
+     * Take every timeout out of a slot, leaving the slot empty.
+     *
+     * @param	index	the index of the slot.
+     * @param	mark	the value to set the <tt>slot</tt> of each timeout to.
+     * @return	the first timeout that was in the slot.
+     */
+    private Timeout detach(int index, int mark) {
+	Timeout list = heads[index];
+	heads[index] = tails[index] = null;
+	bitmaps[index / slots] &= ~(1L << (index % slots));
+
+	for (Timeout t=list; t!=null; t=t.next) {
+	    t.slot = mark;
+	    size--;
+	}
+	return list;
+    }
+
+    /**
+     * Set the current time of the wheel, cascading the higher level slots
+     * that start at the new time, so that the current slot of every level
+     * above level 0 is always empty.
+     */
+    private void moveTo(long time) {
+	current = time;
+	if ((current & slotMask) == 0)
+	    cascade();
+    }
+
+    /**
+     * Called when the wheel reaches the start of a level 0 turn. Moves the
+     * timeouts in the level 1 slot that starts now down to level 0, and
+     * likewise for each higher level whose slot also starts now.
+     */
+    private void cascade() {
+	// find the highest level whose slot starts now, and cascade from it
+	int top = 1;
+	while (top < levels-1 &&
+	       ((current >>> (top*slotBits)) & slotMask) == 0)
+	    top++;
+
+	for (int level=top; level>=1; level--) {
+	    int slot = (int) ((current >>> (level*slotBits)) & slotMask);
+	    Timeout t = detach(level*slots + slot, -1);
+	    while (t != null) {
+		Timeout next = t.next;
+		insert(t);
+		t = next;
+	    }
+	}
+    }
+
+    /**
+     * Run the callbacks of the timeouts in a level 0 slot. The slot is emptied
+     * first, since a callback may schedule a timeout that falls in the same
+     * slot one turn later; a callback may also cancel the timeouts after it.
+     */
+    private void expire(int slot) {
+	Timeout t = detach(slot, expiring);
+	while (t != null) {
+	    Timeout next = t.next;
+	    t.prev = t.next = null;
+	    if (t.slot == expiring) {
+		t.slot = -1;
+		t.callback.run();
+	    }
+	    t = next;
+	}
+    }
+
+    private static final int expiring = -2;
+
+    private static final int slotBits = 6;
+    private static final int slots = 1 << slotBits;
+    private static final long slotMask = slots - 1;
+    /** Enough levels to hold any non-negative <tt>long</tt> delay. */
+    private static final int levels = (63 + slotBits - 1) / slotBits;
+
+    /** The earliest time the wheel has not yet advanced past. */
+    private long current;
+    private int size = 0;
+
+    private Timeout[] heads = new Timeout[levels*slots];
+    private Timeout[] tails = new Timeout[levels*slots];
+    private long[] bitmaps = new long[levels];
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	System.out.println("TimingWheel Test 1 (expiration order):");
+
+	final long[] last = new long[] { -1 };
+	final int[] ran = new int[1];
+	final TimingWheel wheel = new TimingWheel(0);
+	Random random = new Random(0);
+
+	int count = 100000;
+	TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[count];
+	for (int i=0; i<count; i++) {
+	    // spread delays over several levels, some far in the future
+	    final long time = (long) random.nextInt(1 << (6 + 4*(i%5)));
+	    timeouts[i] = wheel.schedule(time, new Runnable() {
+		    public void run() {
+			Lib.assertTrue(time >= last[0]);
+			last[0] = time;
+			ran[0]++;
+		    }
+		});
+	}
+
+	// cancel every third timeout
+	int canceled = 0;
+	for (int i=0; i<count; i+=3) {
+	    Lib.assertTrue(timeouts[i].cancel());
+	    Lib.assertTrue(!timeouts[i].cancel());
+	    canceled++;
+	}
+	Lib.assertTrue(wheel.size() == count - canceled);
+
+	// advance in uneven steps, the way timer interrupts arrive
+	long now = 0;
+	while (wheel.size() > 0) {
+	    long expiry = wheel.nextExpiry();
+	    now += 400 + random.nextInt(200);
+	    wheel.advance(now);
+	    Lib.assertTrue(last[0] <= now);
+	    Lib.assertTrue(expiry > now || last[0] >= expiry);
+	}
+	Lib.assertTrue(ran[0] == count - canceled);
+	Lib.assertTrue(wheel.nextExpiry() == Long.MAX_VALUE);
+	System.out.println("TimingWheel Test 1 Passed.\n");
+
+	System.out.println("TimingWheel Test 2 (callbacks that reschedule):");
+
+	final TimingWheel periodic = new TimingWheel(1000);
+	final int[] fired = new int[1];
+	periodic.schedule(1000, new Runnable() {
+		public void run() {
+		    fired[0]++;
+		    // already expired by the time the wheel reaches 1100
+		    if (fired[0] < 3)
+			periodic.schedule(1000 + fired[0], this);
+		}
+	    });
+	TimingWheel.Timeout late = periodic.schedule(1L << 40, new Runnable() {
+		public void run() {
+		    Lib.assertNotReached("canceled timeout ran");
+		}
+	    });
+
+	periodic.advance(1100);
+	Lib.assertTrue(fired[0] == 3);
+	Lib.assertTrue(periodic.nextExpiry() == 1L << 40);
+	Lib.assertTrue(late.cancel());
+	periodic.advance(1L << 41);
+	Lib.assertTrue(periodic.size() == 0);
+	System.out.println("TimingWheel Test 2 Passed.");
+    }
+}
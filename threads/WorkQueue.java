@@ -0,0 +1,275 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A queue of deferred work, run by a small pool of kernel worker threads.
+ *
+ * <p>
+ * An interrupt handler runs with interrupts disabled, so it cannot acquire a
+ * lock, and every tick it spends delays the other handlers. Instead it can
+ * <tt>queue()</tt> a work item, which only disables interrupts long enough to
+ * append the item and ready an idle worker. The workers take the items off in
+ * batches and run them with interrupts enabled, so an item may acquire locks
+ * or sleep.
+ *
+ * <p>
+ * Devices need not each dedicate a thread to their bottom half: the shared
+ * queues returned by <tt>getSystemQueue()</tt> and
+ * <tt>getHighPriorityQueue()</tt> serve any number of them.
+ */
+public class WorkQueue {
+    /**
+     * Allocate a new work queue and fork its workers.
+     *
+     * @param	name	the name of the queue, used to name the workers.
+     * @param	workers	the number of worker threads.
+     * @param	priorityBoost	the number of times each worker raises its
+     *				priority with
+     *				<tt>Scheduler.increasePriority()</tt>
+     *				before it starts.
+     */
+    public WorkQueue(String name, int workers, int priorityBoost) {
+	this(name, workers, priorityBoost, defaultMaxBatch);
+    }
+
+    /**
+     * Allocate a new work queue whose workers take at most <i>maxBatch</i>
+     * items at a time, and fork its workers. Items in a batch run one after
+     * another on the same worker, so if an item may block until a later one
+     * has run, <i>maxBatch</i> must be 1.
+     *
+     * @param	name	the name of the queue, used to name the workers.
+     * @param	workers	the number of worker threads.
+     * @param	priorityBoost	the number of times each worker raises its
+     *				priority with
+     *				<tt>Scheduler.increasePriority()</tt>
+     *				before it starts.
+     * @param	maxBatch	the largest number of items a worker takes at
+     *				once.
+     */
+    public WorkQueue(String name, int workers, final int priorityBoost,
+		     int maxBatch) {
+	Lib.assertTrue(workers > 0 && priorityBoost >= 0 && maxBatch > 0);
+
+	this.maxBatch = maxBatch;
+	this.workers = new KThread[workers];
+	for (int i=0; i<workers; i++) {
+	    this.workers[i] = new KThread(new Runnable() {
+		    public void run() { work(priorityBoost); }
+		}).setName(name + " worker " + i);
+	    this.workers[i].fork();
+	}
+    }
+
+    /**
+     * Queue work to be run by one of the workers, in the order it was queued
+     * if there is only one worker. May be called from an interrupt handler.
+     *
+     * @param	work	the work to run.
+     */
+    public void queue(Runnable work) {
+	Lib.assertTrue(work != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(!shutdown);
+	pending.add(work);
+	queued++;
+
+	KThread worker = idleWorkers.nextThread();
+	if (worker != null)
+	    worker.ready();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stop accepting work, and wait until the workers have run the items
+     * already queued and finished. Must be called from a thread, and never
+     * on the shared queues.
+     */
+    public void shutdown() {
+	Lib.assertTrue(this != systemQueue && this != highPriorityQueue);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	shutdown = true;
+	KThread worker;
+	while ((worker = idleWorkers.nextThread()) != null)
+	    worker.ready();
+
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<workers.length; i++)
+	    workers[i].join();
+    }
+
+    /**
+     * Return the number of work items that have been queued.
+     *
+     * @return	the number of calls to <tt>queue()</tt>.
+     */
+    public long getQueued() {
+	return queued;
+    }
+
+    /**
+     * Return the number of batches the workers have taken off the queue.
+     *
+     * @return	the number of batches.
+     */
+    public long getBatches() {
+	return batches;
+    }
+
+    /**
+     * Return the shared work queue for ordinary deferred work, creating it
+     * the first time. Must first be called from a thread, not from an
+     * interrupt handler.
+     *
+     * @return	the system work queue.
+     */
+    public static WorkQueue getSystemQueue() {
+	if (systemQueue == null)
+	    systemQueue = new WorkQueue("system", 1, 0);
+
+	return systemQueue;
+    }
+
+    /**
+     * Return the shared work queue for latency-sensitive deferred work, whose
+     * worker runs at a raised priority, creating it the first time. Must
+     * first be called from a thread, not from an interrupt handler.
+     *
+     * @return	the high priority work queue.
+     */
+    public static WorkQueue getHighPriorityQueue() {
+	if (highPriorityQueue == null)
+	    highPriorityQueue = new WorkQueue("high priority", 1, 6);
+
+	return highPriorityQueue;
+    }
+
+    /**
+     * The body of each worker: wait for work, then take up to
+     * <tt>maxBatch</tt> items at once and run them with interrupts enabled.
+     * Returns once the queue is shut down and there is no work left.
+     */
+    private void work(int priorityBoost) {
+	for (int i=0; i<priorityBoost; i++) {
+	    if (!ThreadedKernel.scheduler.increasePriority())
+		break;
+	}
+
+	Runnable[] batch = new Runnable[maxBatch];
+
+	while (true) {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    while (pending.isEmpty() && !shutdown) {
+		idleWorkers.waitForAccess(KThread.currentThread());
+		KThread.sleep();
+	    }
+
+	    if (pending.isEmpty()) {
+		Machine.interrupt().restore(intStatus);
+		return;
+	    }
+
+	    int count = 0;
+	    while (count < batch.length && !pending.isEmpty())
+		batch[count++] = pending.removeFirst();
+	    batches++;
+
+	    Machine.interrupt().restore(intStatus);
+
+	    for (int i=0; i<count; i++) {
+		batch[i].run();
+		batch[i] = null;
+	    }
+	}
+    }
+
+    private static final int defaultMaxBatch = 16;
+
+    private int maxBatch;
+    private KThread[] workers;
+    private LinkedList<Runnable> pending = new LinkedList<Runnable>();
+    private ThreadQueue idleWorkers =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+    private long queued = 0;
+    private long batches = 0;
+    private boolean shutdown = false;
+
+    private static WorkQueue systemQueue = null;
+    private static WorkQueue highPriorityQueue = null;
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final WorkQueue queue = new WorkQueue("test", 1, 0);
+	final int[] ran = new int[1];
+	final boolean[] inWorker = new boolean[] { true };
+
+	// work queued by an interrupt handler runs later, in the worker
+	final Semaphore done = new Semaphore(0);
+	final int items = 40;
+	ThreadedKernel.alarm.schedule(100, new Runnable() {
+		public void run() {
+		    for (int i=0; i<items; i++) {
+			final int index = i;
+			queue.queue(new Runnable() {
+				public void run() {
+				    Lib.assertTrue(ran[0] == index);
+				    inWorker[0] &= KThread.currentThread()
+					.getName().equals("test worker 0");
+				    if (++ran[0] == items)
+					done.V();
+				}
+			    });
+		    }
+		    Lib.assertTrue(ran[0] == 0);
+		}
+	    });
+	done.P();
+
+	Lib.assertTrue(ran[0] == items && inWorker[0]);
+	Lib.assertTrue(queue.getQueued() == items);
+	// all of them were queued before the worker woke up
+	Lib.assertTrue(queue.getBatches() == (items + defaultMaxBatch - 1) /
+		       defaultMaxBatch);
+
+	// work items may block, which an interrupt handler cannot
+	final Lock lock = new Lock();
+	final boolean[] started = new boolean[1];
+	lock.acquire();
+	getSystemQueue().queue(new Runnable() {
+		public void run() {
+		    started[0] = true;
+		    lock.acquire();
+		    ran[0]++;
+		    lock.release();
+		    done.V();
+		}
+	    });
+	while (!started[0])
+	    KThread.yield();
+	Lib.assertTrue(ran[0] == items);
+	lock.release();
+	done.P();
+	Lib.assertTrue(ran[0] == items + 1);
+
+	// shutdown runs what was already queued
+	for (int i=0; i<3; i++) {
+	    queue.queue(new Runnable() {
+		    public void run() { ran[0]++; }
+		});
+	}
+	queue.shutdown();
+	Lib.assertTrue(ran[0] == items + 4);
+    }
+}
@@ -0,0 +1,148 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+
+/**
+ * The wait queues behind the <tt>futexWait()</tt> and <tt>futexWake()</tt>
+ * syscalls. Each queue is keyed by the physical address of a word of user
+ * memory, so two processes that map the same frame share its queue.
+ *
+ * <p>
+ * <tt>sleep()</tt> compares the word and goes to sleep with interrupts
+ * disabled, so a wakeup that comes after the word changes cannot be missed.
+ * User programs have no atomic instruction, though, so a user-level lock
+ * that keeps its state in the word must update it under some other mutual
+ * exclusion; these calls only provide the sleeping and waking.
+ */
+public class Futex {
+    /**
+     * Prevent instantiation.
+     */
+    private Futex() {
+    }
+
+    /**
+     * If the word at the specified physical address still holds the expected
+     * value, put the current thread to sleep until a <tt>wake()</tt> on that
+     * address.
+     *
+     * @param	paddr	the word-aligned physical address of the word.
+     * @param	expected	the value the caller last saw in the word.
+     * @return	<tt>true</tt> if the thread slept and was woken, or
+     *		<tt>false</tt> if the word held some other value.
+     */
+    public static boolean sleep(int paddr, int expected) {
+	Lib.assertTrue(paddr >= 0 && paddr % 4 == 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean slept =
+	    Lib.bytesToInt(Machine.processor().getMemory(), paddr) == expected;
+	if (slept) {
+	    WaitQueue waitQueue = queues.get(paddr);
+	    if (waitQueue == null) {
+		waitQueue = new WaitQueue();
+		queues.put(paddr, waitQueue);
+	    }
+
+	    waitQueue.waiters++;
+	    waitQueue.queue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return slept;
+    }
+
+    /**
+     * Wake up to <i>count</i> threads sleeping on the specified physical
+     * address, all with interrupts disabled once.
+     *
+     * @param	paddr	the word-aligned physical address of the word.
+     * @param	count	the largest number of threads to wake.
+     * @return	the number of threads woken.
+     */
+    public static int wake(int paddr, int count) {
+	Lib.assertTrue(count >= 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int woken = 0;
+	WaitQueue waitQueue = queues.get(paddr);
+	if (waitQueue != null) {
+	    KThread thread;
+	    while (woken < count &&
+		   (thread = waitQueue.queue.nextThread()) != null) {
+		thread.ready();
+		woken++;
+	    }
+
+	    waitQueue.waiters -= woken;
+	    if (waitQueue.waiters == 0)
+		queues.remove(paddr);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return woken;
+    }
+
+    private static class WaitQueue {
+	ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+	int waiters = 0;
+    }
+
+    /** The wait queue of every address that has a thread sleeping on it. */
+    private static HashMap<Integer,WaitQueue> queues =
+	new HashMap<Integer,WaitQueue>();
+
+    /**
+     * Test if this module is working. Uses the first two words of physical
+     * memory, so it must run before any user process is loaded.
+     */
+    public static void selfTest() {
+	final int paddr = 0, other = 4;
+	final byte[] memory = Machine.processor().getMemory();
+	Lib.bytesFromInt(memory, paddr, 1);
+	Lib.bytesFromInt(memory, other, 1);
+
+	// a stale value returns at once and leaves no queue behind
+	Lib.assertTrue(!sleep(paddr, 0));
+	Lib.assertTrue(!queues.containsKey(paddr));
+	Lib.assertTrue(wake(paddr, 1) == 0);
+
+	// three sleepers on one word, woken two and then one at a time
+	final int[] woken = new int[1];
+	KThread[] sleepers = new KThread[3];
+	for (int i=0; i<sleepers.length; i++) {
+	    sleepers[i] = new KThread(new Runnable() {
+		    public void run() {
+			Lib.assertTrue(sleep(paddr, 1));
+			woken[0]++;
+		    }
+		}).setName("futex sleeper " + i);
+	    sleepers[i].fork();
+	}
+	while (!queues.containsKey(paddr) ||
+	       queues.get(paddr).waiters < sleepers.length)
+	    KThread.yield();
+
+	// a wakeup on another word does not reach them
+	Lib.assertTrue(wake(other, sleepers.length) == 0);
+
+	Lib.assertTrue(wake(paddr, 2) == 2);
+	Lib.assertTrue(queues.get(paddr).waiters == 1);
+	while (woken[0] < 2)
+	    KThread.yield();
+	KThread.yield();
+	Lib.assertTrue(woken[0] == 2);
+
+	Lib.assertTrue(wake(paddr, sleepers.length) == 1);
+	Lib.assertTrue(!queues.containsKey(paddr));
+	for (int i=0; i<sleepers.length; i++)
+	    sleepers[i].join();
+	Lib.assertTrue(woken[0] == 3);
+    }
+}
@@ -0,0 +1,402 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+
+/**
+ * Allocates frames of physical memory, singly or in contiguous runs, using a
+ * buddy system.
+ *
+ * <p>
+ * Free memory is kept as blocks of 2<sup><i>order</i></sup> frames, each
+ * aligned to its own size, on one free list per order. The lists are linked
+ * through arrays indexed by frame number, so no object is allocated per
+ * frame, and a bit mask of the orders that have free blocks finds the
+ * smallest block that will do without searching. Allocating a frame takes the
+ * first block of the smallest such order and splits it in half until it is
+ * one frame; freeing a frame merges it with its buddy for as long as the
+ * buddy is free. Either way the work is bounded by the number of orders, so
+ * single frames are allocated and freed in constant time.
+ *
+ * <p>
+ * A bitmap records which frames are allocated, so that freeing a frame that
+ * is already free is caught.
+ *
+ * <p>
+ * Every method that changes the allocator acquires its lock, so it may be
+ * called from any thread, but not from an interrupt handler.
+ */
+public class PageAllocator {
+    /**
+     * Allocate a new page allocator with every frame free.
+     *
+     * @param	numPages	the number of frames of physical memory.
+     */
+    public PageAllocator(int numPages) {
+	Lib.assertTrue(numPages > 0);
+
+	this.numPages = numPages;
+	maxOrder = 31 - Integer.numberOfLeadingZeros(numPages);
+
+	allocated = new long[(numPages + 63) / 64];
+	Arrays.fill(allocated, -1L);
+	next = new int[numPages];
+	prev = new int[numPages];
+	blockOrder = new byte[numPages];
+	Arrays.fill(blockOrder, (byte) -1);
+	heads = new int[maxOrder+1];
+	Arrays.fill(heads, -1);
+	freeBlocks = new int[maxOrder+1];
+
+	freeRange(0, numPages);
+    }
+
+    /**
+     * Allocate a single frame.
+     *
+     * @return	the frame number, or -1 if memory is full.
+     */
+    public int allocate() {
+	lock.acquire();
+	int ppn = allocateBlock(0);
+	lock.release();
+
+	return ppn;
+    }
+
+    /**
+     * Allocate the specified number of frames, which need not be contiguous.
+     * Either all of them are allocated or none are.
+     *
+     * @param	count	the number of frames to allocate.
+     * @return	the frame numbers, or <tt>null</tt> if there are fewer than
+     *		<i>count</i> frames free.
+     */
+    public int[] allocate(int count) {
+	Lib.assertTrue(count >= 0);
+
+	lock.acquire();
+
+	int[] ppns = null;
+	if (count <= freePages) {
+	    ppns = new int[count];
+	    for (int i=0; i<count; i++)
+		ppns[i] = allocateBlock(0);
+	}
+
+	lock.release();
+	return ppns;
+    }
+
+    /**
+     * Allocate the specified number of contiguous frames. The block allocated
+     * is rounded up to a power of two, and the frames past <i>count</i> are
+     * freed again.
+     *
+     * @param	count	the number of frames to allocate.
+     * @return	the first frame number, or -1 if there is no free run of
+     *		frames that long.
+     */
+    public int allocateContiguous(int count) {
+	Lib.assertTrue(count > 0);
+
+	int order = 32 - Integer.numberOfLeadingZeros(count - 1);
+	if (order > maxOrder)
+	    return -1;
+
+	lock.acquire();
+
+	int ppn = allocateBlock(order);
+	if (ppn != -1)
+	    freeRange(ppn + count, (1 << order) - count);
+
+	lock.release();
+	return ppn;
+    }
+
+    /**
+     * Free a single frame.
+     *
+     * @param	ppn	the frame number, which must be allocated.
+     */
+    public void free(int ppn) {
+	lock.acquire();
+	freeRange(ppn, 1);
+	lock.release();
+    }
+
+    /**
+     * Free a run of contiguous frames. They need not have been allocated
+     * together.
+     *
+     * @param	ppn	the first frame number.
+     * @param	count	the number of frames, which must all be allocated.
+     */
+    public void free(int ppn, int count) {
+	lock.acquire();
+	freeRange(ppn, count);
+	lock.release();
+    }
+
+    /**
+     * Test whether a frame is allocated.
+     *
+     * @param	ppn	the frame number.
+     * @return	<tt>true</tt> if the frame is allocated.
+     */
+    public boolean isAllocated(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPages);
+
+	return (allocated[ppn/64] & (1L << ppn)) != 0;
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return	the number of free frames.
+     */
+    public int getFreePages() {
+	return freePages;
+    }
+
+    /**
+     * Return the number of free blocks of the specified order.
+     *
+     * @param	order	the order, so that each block has 2<sup>order</sup>
+     *			frames.
+     * @return	the number of free blocks of that size.
+     */
+    public int getFreeBlocks(int order) {
+	return (order >= 0 && order <= maxOrder) ? freeBlocks[order] : 0;
+    }
+
+    /**
+     * Return the size of the largest free block, which is the longest run of
+     * frames that <tt>allocateContiguous()</tt> is sure to find.
+     *
+     * @return	the number of frames in the largest free block, or 0 if
+     *		memory is full.
+     */
+    public int getLargestFreeBlock() {
+	return nonEmpty == 0 ? 0 : Integer.highestOneBit(nonEmpty);
+    }
+
+    /**
+     * Return the external fragmentation of free memory: the fraction of free
+     * frames that are not in the largest free block.
+     *
+     * @return	a number from 0, if all free frames are in one block, up to
+     *		nearly 1.
+     */
+    public double getFragmentation() {
+	if (freePages == 0)
+	    return 0;
+
+	return 1 - (double) getLargestFreeBlock() / freePages;
+    }
+
+    /**
+     * Take a free block of the specified order, splitting a larger block if
+     * there is none, and mark its frames allocated. Must be called with the
+     * lock held.
+     */
+    private int allocateBlock(int order) {
+	int orders = nonEmpty & (-1 << order);
+	if (orders == 0)
+	    return -1;
+
+	int found = Integer.numberOfTrailingZeros(orders);
+	int ppn = heads[found];
+	unlink(ppn, found);
+
+	// give back the upper half until the block is the right size
+	while (found > order) {
+	    found--;
+	    push(ppn + (1 << found), found);
+	}
+
+	for (int i=0; i<(1 << order); i++) {
+	    Lib.assertTrue(!isAllocated(ppn + i));
+	    allocated[(ppn+i)/64] |= 1L << (ppn+i);
+	}
+	freePages -= 1 << order;
+
+	return ppn;
+    }
+
+    /**
+     * Free a run of frames, as the largest aligned blocks that fit. Must be
+     * called with the lock held.
+     */
+    private void freeRange(int ppn, int count) {
+	Lib.assertTrue(ppn >= 0 && count >= 0 && ppn + count <= numPages);
+
+	while (count > 0) {
+	    int order = Math.min(Integer.numberOfTrailingZeros(ppn | (1 << 30)),
+				 31 - Integer.numberOfLeadingZeros(count));
+	    freeBlock(ppn, order);
+	    ppn += 1 << order;
+	    count -= 1 << order;
+	}
+    }
+
+    /**
+     * Mark the frames of an aligned block free, and merge it with its buddy
+     * for as long as the buddy is free.
+     */
+    private void freeBlock(int ppn, int order) {
+	for (int i=0; i<(1 << order); i++) {
+	    Lib.assertTrue(isAllocated(ppn + i));
+	    allocated[(ppn+i)/64] &= ~(1L << (ppn+i));
+	}
+	freePages += 1 << order;
+
+	while (order < maxOrder) {
+	    int buddy = ppn ^ (1 << order);
+	    if (buddy + (1 << order) > numPages || blockOrder[buddy] != order)
+		break;
+
+	    unlink(buddy, order);
+	    ppn = Math.min(ppn, buddy);
+	    order++;
+	}
+
+	push(ppn, order);
+    }
+
+    /** Add a block to the head of the free list of its order. */
+    private void push(int ppn, int order) {
+	blockOrder[ppn] = (byte) order;
+	prev[ppn] = -1;
+	next[ppn] = heads[order];
+	if (heads[order] != -1)
+	    prev[heads[order]] = ppn;
+	heads[order] = ppn;
+
+	freeBlocks[order]++;
+	nonEmpty |= 1 << order;
+    }
+
+    /** Remove a block from the free list of its order. */
+    private void unlink(int ppn, int order) {
+	if (prev[ppn] != -1)
+	    next[prev[ppn]] = next[ppn];
+	else
+	    heads[order] = next[ppn];
+	if (next[ppn] != -1)
+	    prev[next[ppn]] = prev[ppn];
+	blockOrder[ppn] = -1;
+
+	if (--freeBlocks[order] == 0)
+	    nonEmpty &= ~(1 << order);
+    }
+
+    private int numPages;
+    private int maxOrder;
+    private int freePages = 0;
+
+    /** One bit per frame, set if the frame is allocated. */
+    private long[] allocated;
+    /** The free list links of each frame that starts a free block. */
+    private int[] next, prev;
+    /** The order of the free block starting at each frame, or -1. */
+    private byte[] blockOrder;
+    /** The first free block of each order, or -1. */
+    private int[] heads;
+    private int[] freeBlocks;
+    /** Bit <i>n</i> is set if there is a free block of order <i>n</i>. */
+    private int nonEmpty = 0;
+
+    private Lock lock = new Lock();
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	// a size that is not a power of two starts out as several blocks
+	PageAllocator allocator = new PageAllocator(100);
+	Lib.assertTrue(allocator.getFreePages() == 100);
+	Lib.assertTrue(allocator.getLargestFreeBlock() == 64);
+	Lib.assertTrue(allocator.getFreeBlocks(6) == 1 &&
+		       allocator.getFreeBlocks(5) == 1 &&
+		       allocator.getFreeBlocks(2) == 1);
+
+	// single frames are all distinct, and freeing them merges everything
+	int[] ppns = allocator.allocate(100);
+	Lib.assertTrue(ppns != null && allocator.getFreePages() == 0);
+	Lib.assertTrue(allocator.allocate() == -1);
+	Lib.assertTrue(allocator.allocate(1) == null);
+	boolean[] seen = new boolean[100];
+	for (int i=0; i<ppns.length; i++) {
+	    Lib.assertTrue(!seen[ppns[i]] && allocator.isAllocated(ppns[i]));
+	    seen[ppns[i]] = true;
+	}
+	for (int i=ppns.length-1; i>=0; i--)
+	    allocator.free(ppns[i]);
+	Lib.assertTrue(allocator.getFreePages() == 100);
+	Lib.assertTrue(allocator.getLargestFreeBlock() == 64);
+
+	// contiguous runs are trimmed to the requested length
+	int run = allocator.allocateContiguous(40);
+	Lib.assertTrue(run == 0 && allocator.getFreePages() == 60);
+	for (int i=0; i<40; i++)
+	    Lib.assertTrue(allocator.isAllocated(run + i));
+	Lib.assertTrue(!allocator.isAllocated(run + 40));
+	Lib.assertTrue(allocator.allocateContiguous(64) == -1);
+
+	// freeing every other frame leaves memory fragmented
+	int single = allocator.allocate();
+	Lib.assertTrue(single >= 40);
+	for (int i=0; i<40; i+=2)
+	    allocator.free(run + i);
+	Lib.assertTrue(allocator.getLargestFreeBlock() == 32);
+	Lib.assertTrue(allocator.getFragmentation() > 0.5);
+	for (int i=1; i<40; i+=2)
+	    allocator.free(run + i);
+	allocator.free(single);
+	Lib.assertTrue(allocator.getFreePages() == 100);
+	Lib.assertTrue(allocator.getFreeBlocks(6) == 1);
+
+	// random allocations and frees against a simple model
+	java.util.Random random = new java.util.Random(50);
+	boolean[] used = new boolean[100];
+	int[] runStart = new int[100], runLength = new int[100];
+	int runs = 0;
+	for (int step=0; step<2000; step++) {
+	    if (runs > 0 && random.nextInt(2) == 0) {
+		int r = random.nextInt(runs);
+		allocator.free(runStart[r], runLength[r]);
+		for (int i=0; i<runLength[r]; i++)
+		    used[runStart[r] + i] = false;
+		runs--;
+		runStart[r] = runStart[runs];
+		runLength[r] = runLength[runs];
+	    }
+	    else {
+		int length = 1 + random.nextInt(8);
+		int ppn = allocator.allocateContiguous(length);
+		if (ppn == -1) {
+		    Lib.assertTrue(allocator.getLargestFreeBlock() <
+				   Integer.highestOneBit(2*length - 1));
+		    continue;
+		}
+		for (int i=0; i<length; i++) {
+		    Lib.assertTrue(!used[ppn + i]);
+		    used[ppn + i] = true;
+		}
+		runStart[runs] = ppn;
+		runLength[runs++] = length;
+	    }
+
+	    int free = 0;
+	    for (int i=0; i<100; i++) {
+		Lib.assertTrue(used[i] == allocator.isAllocated(i));
+		if (!used[i])
+		    free++;
+	    }
+	    Lib.assertTrue(free == allocator.getFreePages());
+	}
+    }
+}
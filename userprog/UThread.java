@@ -28,6 +28,7 @@ public class UThread extends KThread {
     private void runProgram() {
         process.initRegisters();
         process.restoreState();
+        setUserMode(true);
 
         Machine.processor().run();
 
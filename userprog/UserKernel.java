@@ -3,7 +3,6 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
-import java.util.LinkedList;
 
 /**
  * A kernel that can support multiple user processes.
@@ -29,11 +28,7 @@ public class UserKernel extends ThreadedKernel {
             public void run() { exceptionHandler(); }
         });
 
-	    freeList = new LinkedList<Integer>();
-	    numFreePages = Machine.processor().getNumPhysPages();
-	    for (int i = 0; i < numFreePages; i ++)
-	        freeList.add(i);
-	    lock = new Lock();
+	    pageAllocator = new PageAllocator(Machine.processor().getNumPhysPages());
     }
 
     /**
@@ -43,6 +38,9 @@ public class UserKernel extends ThreadedKernel {
         /*
         super.selfTest();
 
+        PageAllocator.selfTest();
+        Futex.selfTest();
+
         System.out.println("Testing the console device. Typed characters");
         System.out.println("will be echoed until q is typed.");
 
@@ -88,7 +86,9 @@ public class UserKernel extends ThreadedKernel {
 
         UserProcess process = ((UThread) KThread.currentThread()).process;
         int cause = Machine.processor().readRegister(Processor.regCause);
+        KThread.currentThread().setUserMode(false);
         process.handleException(cause);
+        KThread.currentThread().setUserMode(true);
     }
 
     /**
@@ -120,12 +120,8 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
-    /**
-     * A linked list of free pages in physical memory.
-     */
-    public LinkedList<Integer> freeList;
-    public int numFreePages;
-    public Lock lock;
+    /** Globally accessible reference to the physical page allocator. */
+    public static PageAllocator pageAllocator;
 
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
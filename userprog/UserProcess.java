@@ -329,8 +329,8 @@ public class UserProcess {
      */
     protected boolean loadSections() {
         Lib.assertTrue(Kernel.kernel instanceof UserKernel);
-        ((UserKernel)Kernel.kernel).lock.acquire();
-		if (numPages > ((UserKernel)Kernel.kernel).numFreePages) {
+		int[] ppns = UserKernel.pageAllocator.allocate(numPages);
+		if (ppns == null) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
@@ -338,17 +338,9 @@ public class UserProcess {
 
 		// set up page table
 		pageTable = new TranslationEntry[numPages];
-		int index = 0;
-		Iterator<Integer> iter = ((UserKernel)Kernel.kernel).freeList.iterator();
-		while (iter.hasNext() && index < numPages) {
-		    pageTable[index] = new TranslationEntry(index, iter.next(), true, false, false, false);
-		    iter.remove();
-		    index ++;
-        }
-        Lib.debug(dbgProcess, "\tAfter loading, # of free pages is "+((UserKernel)Kernel.kernel).freeList.size());
-        Lib.assertTrue(pageTable[numPages-1].vpn == (numPages-1));
-        ((UserKernel)Kernel.kernel).numFreePages -= numPages;
-        ((UserKernel)Kernel.kernel).lock.release();
+		for (int i = 0; i < numPages; i ++)
+		    pageTable[i] = new TranslationEntry(i, ppns[i], true, false, false, false);
+        Lib.debug(dbgProcess, "\tAfter loading, # of free pages is "+UserKernel.pageAllocator.getFreePages());
 
 		// load sections
 		for (int s = 0; s < coff.getNumSections(); s++) {
@@ -371,13 +363,10 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-        ((UserKernel)Kernel.kernel).lock.acquire();
         for (int i = 0; i < numPages; i ++) {
             pageTable[i].valid = false;
-            ((UserKernel)Kernel.kernel).freeList.add(pageTable[i].ppn);
+            UserKernel.pageAllocator.free(pageTable[i].ppn);
         }
-        ((UserKernel)Kernel.kernel).numFreePages += numPages;
-        ((UserKernel)Kernel.kernel).lock.release();
 
     }    
 
@@ -448,8 +437,8 @@ public class UserProcess {
      */
     private int handleHalt() {
         if (isRoot) {
-            Machine.halt();
-		    Lib.assertNotReached("Machine.halt() did not halt machine!");
+            Kernel.kernel.terminate();
+		    Lib.assertNotReached("Kernel.terminate() did not halt machine!");
         }   
 		return 0;
     }
@@ -608,6 +597,43 @@ public class UserProcess {
         return 0;
     }
 
+    private int handleFutexWait(int addr, int expected) {
+        int paddr = translateWord(addr);
+        if (paddr < 0) {
+            return -1;
+        }
+
+        return Futex.sleep(paddr, expected) ? 0 : -1;
+    }
+
+    private int handleFutexWake(int addr, int count) {
+        int paddr = translateWord(addr);
+        if (paddr < 0 || count < 0) {
+            return -1;
+        }
+
+        return Futex.wake(paddr, count);
+    }
+
+    /**
+     * Translate the virtual address of a word to a physical address.
+     *
+     * @return	the physical address, or -1 if the address is not word-aligned
+     *		or not mapped.
+     */
+    private int translateWord(int vaddr) {
+        if (vaddr < 0 || vaddr % 4 != 0 || vaddr >= numPages * pageSize) {
+            return -1;
+        }
+
+        TranslationEntry entry = pageTable[vaddr / pageSize];
+        if (!entry.valid) {
+            return -1;
+        }
+
+        return entry.ppn * pageSize + vaddr % pageSize;
+    }
+
 
     private static final int
     	syscallHalt = 0,
@@ -619,7 +645,9 @@ public class UserProcess {
 		syscallRead = 6,
 		syscallWrite = 7,
 		syscallClose = 8,
-		syscallUnlink = 9;
+		syscallUnlink = 9,
+		syscallFutexWait = 13,
+		syscallFutexWake = 14;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -640,6 +668,10 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  futexWait(int *addr, int expected);
+     *								</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  futexWake(int *addr, int count);
+     *								</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -671,6 +703,10 @@ public class UserProcess {
 			return handleClose(a0);
 		case syscallUnlink:
 			return handleUnlink(a0);
+		case syscallFutexWait:
+			return handleFutexWait(a0, a1);
+		case syscallFutexWake:
+			return handleFutexWake(a0, a1);
 	
 		default:
 		    Lib.debug(dbgProcess, "Unknown syscall " + syscall);